@@ -0,0 +1,52 @@
+package net.bramp.concurrent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe set that only remembers the most recently added elements.
+ * Once full, adding a new element evicts the least recently added or checked one.
+ * @author bramp
+ *
+ */
+public class RecentSet<E> {
+	final LinkedHashMap<E, Boolean> map;
+
+	public RecentSet(final int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("maxSize must be positive");
+
+		map = new LinkedHashMap<E, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<E, Boolean> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param e
+	 * @return true if the element was not already in the set
+	 */
+	public synchronized boolean add(E e) {
+		return map.put(e, Boolean.TRUE) == null;
+	}
+
+	public synchronized boolean contains(E e) {
+		return map.get(e) != null;
+	}
+
+	public synchronized boolean remove(E e) {
+		return map.remove(e) != null;
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+}
@@ -0,0 +1,108 @@
+package net.bramp.db_patterns.locks;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The threads in this JVM waiting on one lock name, woken by whoever is sleeping
+ * in MySQL on their behalf. Keeps signal() and signalAll() semantics: a signal
+ * wakes one waiter, and signalAll wakes every current waiter.
+ *
+ * @author bramp
+ */
+class LocalCondition {
+
+	final Lock lock = new ReentrantLock();
+	final Condition local = lock.newCondition();
+
+	// Guarded by lock
+	int waiters = 0;     // Local threads waiting
+	int permits = 0;     // Signals not yet taken by a waiter
+	long generation = 0; // Incremented to wake every waiter
+
+	/**
+	 * Called with the lock held, as each thread starts waiting
+	 */
+	protected void onAwait() {}
+
+	/**
+	 * @return A estimate of the nanoseconds left, or zero or less if timed out
+	 * @throws InterruptedException
+	 */
+	long awaitNanos(long nanosTimeout) throws InterruptedException {
+		lock.lock();
+		try {
+			waiters++;
+			onAwait();
+
+			final long gen = generation;
+			try {
+				while (true) {
+					if (gen != generation)
+						return Math.max(nanosTimeout, 1);
+
+					if (permits > 0) {
+						permits--;
+						return Math.max(nanosTimeout, 1);
+					}
+
+					if (nanosTimeout <= 0)
+						return nanosTimeout;
+
+					nanosTimeout = local.awaitNanos(nanosTimeout);
+				}
+
+			} finally {
+				waiters--;
+				permits = Math.min(permits, waiters);
+			}
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a waiter will be woken
+	 */
+	boolean signal() {
+		lock.lock();
+		try {
+			if (waiters - permits <= 0)
+				return false;
+
+			permits++;
+			local.signal();
+			return true;
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if there were any waiters to wake
+	 */
+	boolean signalAll() {
+		lock.lock();
+		try {
+			generation++;
+			permits = 0;
+			local.signalAll();
+			return waiters > 0;
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getWaiters() {
+		lock.lock();
+		try {
+			return waiters;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,524 @@
+package net.bramp.db_patterns.locks;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes distributed Conditions, where one sleeping connection per JVM waits on
+ * behalf of every local thread, whatever lock name they wait on.
+ * <p/>
+ * Each JVM registers its sleeper's connection, and the lock names it is interested
+ * in. A signaller records which lock name fired in the notification table, then
+ * kills the sleeper of a interested JVM. The woken sleeper reads its notifications,
+ * and wakes the right local threads. As notifications are kept in a table, one
+ * arriving while the sleeper is awake is picked up before it next sleeps.
+ * <p/>
+ * Locally signal() wakes one thread, and signalAll() every thread. A signal() that
+ * reaches a JVM with no waiter left is passed on at most once (see {@link #MAX_FORWARDS}),
+ * never back to where it came from, and is then dropped, so it can't bounce between
+ * JVMs that are only still registered. Only conditions made by a dispatcher can wake
+ * each other.
+ * <p/>
+ * CREATE TABLE condition_sleeper (
+ *     jvm_id        VARCHAR(64) NOT NULL,
+ *     connection_id BIGINT UNSIGNED NOT NULL, -- Connection blocked in SLEEP()
+ *     updated       TIMESTAMP NOT NULL,
+ *     PRIMARY KEY (jvm_id)
+ * ) ENGINE=MEMORY;
+ * <p/>
+ * CREATE TABLE condition_interest (
+ *     lock_name     VARCHAR(255) NOT NULL,
+ *     jvm_id        VARCHAR(64) NOT NULL,
+ *     since         TIMESTAMP NOT NULL,
+ *     PRIMARY KEY (lock_name, jvm_id)
+ * ) ENGINE=MEMORY;
+ * <p/>
+ * CREATE TABLE condition_notification (
+ *     id            BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
+ *     jvm_id        VARCHAR(64) NOT NULL,    -- JVM to wake
+ *     origin_jvm_id VARCHAR(64) NOT NULL,    -- JVM that signalled
+ *     hops          TINYINT UNSIGNED NOT NULL, -- Times this signal has been passed on
+ *     lock_name     VARCHAR(255) NOT NULL,   -- Lock name signalled
+ *     signal_all    TINYINT(1) NOT NULL,
+ *     PRIMARY KEY (id),
+ *     KEY (jvm_id, id) USING BTREE
+ * ) ENGINE=MEMORY;
+ *
+ * @author bramp
+ */
+public class MySQLConditionDispatcher implements Runnable {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLConditionDispatcher.class);
+
+	/**
+	 * Only sleeps if there are no notifications for us. A signaller inserts its
+	 * notification before its KILL, so a KILL that arrives before the sleep starts,
+	 * and is lost, still stops it sleeping.
+	 */
+	final static String sleepQuery =
+			"SELECT SLEEP(IF(EXISTS(SELECT 1 FROM condition_notification WHERE jvm_id = ?), 0, ?)), ?;";
+	final static String wakeQuery = "KILL QUERY ?;";
+	final static String connectionIdQuery = "SELECT CONNECTION_ID();";
+
+	final static String registerSleeperQuery = "REPLACE INTO condition_sleeper (jvm_id, connection_id, updated) VALUES (?, ?, NOW())";
+	final static String unregisterSleeperQuery = "DELETE FROM condition_sleeper WHERE jvm_id = ? AND connection_id = ?";
+	final static String removeSleeperQuery = "DELETE FROM condition_sleeper WHERE jvm_id = ?";
+
+	final static String registerInterestQuery = "INSERT IGNORE INTO condition_interest (lock_name, jvm_id, since) VALUES (?, ?, NOW())";
+	final static String unregisterInterestQuery = "DELETE FROM condition_interest WHERE lock_name = ? AND jvm_id = ?";
+	final static String unregisterAllInterestQuery = "DELETE FROM condition_interest WHERE jvm_id = ?";
+
+	final static String sleepersQuery =
+			"SELECT s.jvm_id, s.connection_id FROM condition_interest i " +
+					"JOIN condition_sleeper s ON s.jvm_id = i.jvm_id " +
+					"WHERE i.lock_name = ? AND i.jvm_id NOT IN (?, ?) " +
+					"ORDER BY i.since ASC";
+
+	final static String notifyQuery = "INSERT INTO condition_notification (jvm_id, origin_jvm_id, hops, lock_name, signal_all) VALUES (?, ?, ?, ?, ?)";
+	final static String notificationsQuery = "SELECT id, lock_name, signal_all, origin_jvm_id, hops FROM condition_notification WHERE jvm_id = ? ORDER BY id ASC";
+	final static String deleteNotificationsQuery = "DELETE FROM condition_notification WHERE jvm_id = ? AND id <= ?";
+	final static String deleteAllNotificationsQuery = "DELETE FROM condition_notification WHERE jvm_id = ?";
+
+	/**
+	 * How long the sleeper sleeps, if not woken, before it checks for expired interests
+	 */
+	final static long SLEEP_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	/**
+	 * How long a lock name is kept registered after its last waiter
+	 */
+	final static long INTEREST_EXPIRY = TimeUnit.SECONDS.toMillis(60);
+
+	final static long RETRY_INTERVAL = 1000; // in ms
+
+	/**
+	 * How many times a signal() with no local waiter is passed on to another JVM
+	 */
+	final static int MAX_FORWARDS = 1;
+
+	final static int ER_NO_SUCH_THREAD = 1094;
+	final static int ER_QUERY_INTERRUPTED = 1317;
+
+	/**
+	 * A dispatcher refers to its DataSource, so is held weakly, otherwise the DataSource
+	 * could never be collected. A dispatcher is kept alive by its conditions, and its
+	 * sleeper while anything is registered.
+	 */
+	final static Map<DataSource, WeakReference<MySQLConditionDispatcher>> dispatchers =
+			new WeakHashMap<DataSource, WeakReference<MySQLConditionDispatcher>>();
+
+	final DataSource ds;
+	final String jvmId = UUID.randomUUID().toString();
+
+	final ConcurrentMap<String, LocalCondition> locals = new ConcurrentHashMap<String, LocalCondition>();
+
+	/**
+	 * Lock names registered in condition_interest, and when they were last waited on
+	 */
+	final ConcurrentMap<String, Long> interests = new ConcurrentHashMap<String, Long>();
+
+	boolean running = false; // Guarded by this
+
+	/**
+	 * @param ds
+	 * @return The dispatcher for this DataSource
+	 */
+	public static synchronized MySQLConditionDispatcher getInstance(@Nonnull DataSource ds) {
+		WeakReference<MySQLConditionDispatcher> ref = dispatchers.get(ds);
+		MySQLConditionDispatcher dispatcher = ref == null ? null : ref.get();
+		if (dispatcher == null) {
+			dispatcher = new MySQLConditionDispatcher(ds);
+			dispatchers.put(ds, new WeakReference<MySQLConditionDispatcher>(dispatcher));
+		}
+		return dispatcher;
+	}
+
+	MySQLConditionDispatcher(DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * @param lockName
+	 * @return A Condition for this lock name, woken through this JVM's sleeper
+	 */
+	public Condition newCondition(@Nonnull String lockName) {
+		return new DispatchedCondition(lockName);
+	}
+
+	LocalCondition getLocal(@Nonnull String lockName) {
+		LocalCondition local = locals.get(lockName);
+		if (local == null) {
+			local = new LocalCondition();
+			LocalCondition existing = locals.putIfAbsent(lockName, local);
+			if (existing != null)
+				local = existing;
+		}
+		return local;
+	}
+
+	/**
+	 * Registers interest in the lock name, before a thread waits on it, and makes
+	 * sure the sleeper is running
+	 */
+	protected void register(@Nonnull String lockName) throws SQLException {
+		if (interests.put(lockName, System.currentTimeMillis()) == null) {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(registerInterestQuery);
+				try {
+					s.setString(1, lockName);
+					s.setString(2, jvmId);
+					s.executeUpdate();
+				} finally {
+					s.close();
+				}
+
+			} catch (SQLException e) {
+				interests.remove(lockName);
+				throw e;
+
+			} finally {
+				c.close();
+			}
+		}
+
+		synchronized (this) {
+			if (!running) {
+				running = true;
+
+				Thread thread = new Thread(this, "MySQLConditionDispatcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * The sleeper. Holds one connection while any lock name is registered.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				try {
+					Connection c = ds.getConnection();
+					try {
+						long connectionId = getConnectionId(c);
+						execute(c, registerSleeperQuery, jvmId, connectionId);
+
+						try {
+							while (true) {
+								try {
+									dispatch(c);
+									expireInterests(c);
+
+									synchronized (this) {
+										if (interests.isEmpty()) {
+											running = false;
+											return;
+										}
+									}
+
+									sleep(c);
+
+								} catch (SQLException e) {
+									// A signaller's KILL arrived while we were awake. Its notification is still there.
+									if (e.getErrorCode() != ER_QUERY_INTERRUPTED)
+										throw e;
+								}
+							}
+
+						} finally {
+							// Only our own row, a new sleeper may have already replaced it
+							execute(c, unregisterSleeperQuery, jvmId, connectionId);
+						}
+
+					} finally {
+						c.close();
+					}
+
+				} catch (SQLException e) {
+					// Wake everyone, so they find out about the database themselves
+					LOG.warn("Sleeper failed, restarting", e);
+					for (LocalCondition local : locals.values())
+						local.signalAll();
+
+					Thread.sleep(RETRY_INTERVAL);
+				}
+			}
+
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Reads this JVM's notifications, and wakes the local threads. Signals for lock
+	 * names no one here is waiting on any more are passed on to another JVM, unless
+	 * they have already been passed on {@link #MAX_FORWARDS} times.
+	 * <p/>
+	 * The notifications are deleted before anyone is woken, so a KILL that interrupts
+	 * this can't make the next pass deliver them twice.
+	 */
+	protected void dispatch(@Nonnull Connection c) throws SQLException {
+		List<Object[]> notifications = new ArrayList<Object[]>();
+		long lastId = 0;
+
+		PreparedStatement s = c.prepareStatement(notificationsQuery);
+		try {
+			s.setString(1, jvmId);
+
+			ResultSet rs = s.executeQuery();
+			while (rs.next()) {
+				lastId = rs.getLong(1);
+				notifications.add(new Object[] {rs.getString(2), rs.getBoolean(3), rs.getString(4), rs.getInt(5)});
+			}
+
+		} finally {
+			s.close();
+		}
+
+		if (lastId == 0)
+			return;
+
+		executeUninterrupted(c, deleteNotificationsQuery, jvmId, lastId);
+
+		List<Object[]> forward = new ArrayList<Object[]>();
+		for (Object[] n : notifications) {
+			String lockName = (String) n[0];
+			LocalCondition local = locals.get(lockName);
+
+			if ((Boolean) n[1]) {
+				if (local != null)
+					local.signalAll();
+
+			} else if (local == null || !local.signal()) {
+				int hops = (Integer) n[3];
+				if (hops < MAX_FORWARDS)
+					forward.add(new Object[] {lockName, n[2], hops + 1});
+				else
+					LOG.debug("Dropping signal for '{}', no one is waiting", lockName);
+			}
+		}
+
+		for (Object[] f : forward)
+			signalRemote(c, (String) f[0], false, (String) f[1], (Integer) f[2]);
+	}
+
+	/**
+	 * Unregisters lock names that have not been waited on for a while
+	 */
+	protected void expireInterests(@Nonnull Connection c) throws SQLException {
+		long expired = System.currentTimeMillis() - INTEREST_EXPIRY;
+
+		for (Map.Entry<String, Long> interest : interests.entrySet()) {
+			String lockName = interest.getKey();
+			if (interest.getValue() > expired || getLocal(lockName).getWaiters() > 0)
+				continue;
+
+			if (interests.remove(lockName, interest.getValue()))
+				executeUninterrupted(c, unregisterInterestQuery, lockName, jvmId);
+		}
+	}
+
+	protected void sleep(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(sleepQuery);
+		try {
+			s.setString(1, jvmId);
+			s.setFloat(2, SLEEP_INTERVAL / 1000f);
+			s.setString(3, "jvm-" + jvmId);
+			s.execute();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Signals the lock name in other JVMs, except the one it came from
+	 *
+	 * @param all    Every interested JVM, instead of just one
+	 * @param origin The JVM that first signalled
+	 * @param hops   The number of times this signal has been passed on
+	 */
+	protected void signalRemote(@Nonnull Connection c, @Nonnull String lockName, boolean all,
+	                            @Nonnull String origin, int hops) throws SQLException {
+		List<Object[]> sleepers = new ArrayList<Object[]>();
+
+		PreparedStatement s = c.prepareStatement(sleepersQuery);
+		try {
+			s.setString(1, lockName);
+			s.setString(2, jvmId);
+			s.setString(3, origin);
+
+			ResultSet rs = s.executeQuery();
+			while (rs.next())
+				sleepers.add(new Object[] {rs.getString(1), rs.getLong(2)});
+
+		} finally {
+			s.close();
+		}
+
+		for (Object[] sleeper : sleepers) {
+			String sleeperJvmId = (String) sleeper[0];
+
+			execute(c, notifyQuery, sleeperJvmId, origin, hops, lockName, all);
+			try {
+				execute(c, wakeQuery, sleeper[1]);
+
+			} catch (SQLException e) {
+				if (e.getErrorCode() != ER_NO_SUCH_THREAD)
+					throw e;
+
+				// That JVM died without unregistering, so clean up after it
+				LOG.info("Removing dead sleeper {}", sleeperJvmId);
+				execute(c, removeSleeperQuery, sleeperJvmId);
+				execute(c, unregisterAllInterestQuery, sleeperJvmId);
+				execute(c, deleteAllNotificationsQuery, sleeperJvmId);
+				continue;
+			}
+
+			if (!all)
+				return;
+		}
+	}
+
+	protected void signalRemote(@Nonnull String lockName, boolean all) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				signalRemote(c, lockName, all, jvmId, 0);
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected long getConnectionId(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(connectionIdQuery);
+		try {
+			ResultSet rs = s.executeQuery();
+			if (rs.next())
+				return rs.getLong(1);
+
+			throw new SQLException("Failed to retrieve connection id");
+
+		} finally {
+			s.close();
+		}
+	}
+
+	static int execute(@Nonnull Connection c, @Nonnull String sql, Object... params) throws SQLException {
+		PreparedStatement s = c.prepareStatement(sql);
+		try {
+			for (int i = 0; i < params.length; i++)
+				s.setObject(i + 1, params[i]);
+			return s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Runs a statement that is safe to repeat on the sleeper's connection, again if
+	 * a signaller's KILL, meant for the sleep, interrupts it
+	 */
+	static int executeUninterrupted(@Nonnull Connection c, @Nonnull String sql, Object... params) throws SQLException {
+		while (true) {
+			try {
+				return execute(c, sql, params);
+			} catch (SQLException e) {
+				if (e.getErrorCode() != ER_QUERY_INTERRUPTED)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * A condition on one lock name, woken through the dispatcher
+	 */
+	class DispatchedCondition implements Condition {
+		final String lockName;
+		final LocalCondition local;
+
+		DispatchedCondition(String lockName) {
+			this.lockName = lockName;
+			this.local = getLocal(lockName);
+		}
+
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			try {
+				register(lockName);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+			return local.awaitNanos(nanosTimeout);
+		}
+
+		public void await() throws InterruptedException {
+			awaitNanos(Long.MAX_VALUE);
+		}
+
+		public void awaitUninterruptibly() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			return awaitNanos(unit.toNanos(time)) > 0;
+		}
+
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			long duration = deadline.getTime() - System.currentTimeMillis();
+			return awaitNanos(TimeUnit.MILLISECONDS.toNanos(duration)) > 0;
+		}
+
+		/**
+		 * Wakes a local thread if there is one, otherwise one in another JVM
+		 */
+		public void signal() {
+			if (!local.signal())
+				signalRemote(lockName, false);
+		}
+
+		/**
+		 * Wakes every local thread, and every thread in other JVMs
+		 */
+		public void signalAll() {
+			local.signalAll();
+			signalRemote(lockName, true);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package net.bramp.db_patterns.locks;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed Condition where one connection per JVM waits on behalf of all the
+ * local threads waiting on the same lock name. A background sleeper thread keeps a
+ * {@link MySQLSleepBasedCondition} wait running while any thread is waiting, and
+ * wakes the local threads through a java.util.concurrent Condition.
+ * <p/>
+ * Locally, signal() wakes one thread and signalAll() wakes all of them, without
+ * touching the database. A signal from another process can't tell the sleeper how
+ * many threads to wake, so it wakes every local waiter (callers must loop, as with
+ * any Condition). A signal that arrives after the last local waiter has left is
+ * passed on to another process.
+ * <p/>
+ * Compatible with {@link MySQLSleepBasedCondition}s using the same lock name.
+ *
+ * @author bramp
+ */
+public class MySQLMultiplexedCondition implements Condition {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLMultiplexedCondition.class);
+
+	final static long RETRY_INTERVAL = 1000; // in ms
+
+	/**
+	 * One sleeper per DataSource and lock name
+	 */
+	final static ConcurrentMap<List<Object>, Sleeper> sleepers = new ConcurrentHashMap<List<Object>, Sleeper>();
+
+	final Sleeper sleeper;
+
+	/**
+	 * Waits for local threads, and starts its thread while any are waiting
+	 */
+	static class Sleeper extends LocalCondition implements Runnable {
+		final String lockName;
+		final MySQLSleepBasedCondition condition;
+
+		boolean running = false; // If the sleeper thread is running. Guarded by lock
+
+		Sleeper(DataSource ds, String lockName) {
+			this.lockName = lockName;
+			this.condition = new MySQLSleepBasedCondition(ds, lockName);
+		}
+
+		@Override
+		protected void onAwait() {
+			if (!running) {
+				running = true;
+
+				Thread thread = new Thread(this, "MySQLMultiplexedCondition-" + lockName);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		public void run() {
+			while (true) {
+				lock.lock();
+				try {
+					if (waiters == 0) {
+						running = false;
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				try {
+					if (!condition.await(MySQLSleepBasedCondition.DEFAULT_WAIT, TimeUnit.NANOSECONDS))
+						continue; // Timed out
+
+					// Pass the signal on, if everyone here has stopped waiting
+					if (!signalAll())
+						condition.signal();
+
+				} catch (InterruptedException e) {
+					signalAll();
+					lock.lock();
+					try {
+						running = false;
+					} finally {
+						lock.unlock();
+					}
+					return;
+
+				} catch (RuntimeException e) {
+					// Let the waiters find out about the database themselves
+					LOG.warn("Failed to wait on '{}'", lockName, e);
+					signalAll();
+
+					try {
+						Thread.sleep(RETRY_INTERVAL);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+	}
+
+	public MySQLMultiplexedCondition(@Nonnull DataSource ds, @Nonnull String lockName) {
+		this.sleeper = getSleeper(ds, lockName);
+	}
+
+	static Sleeper getSleeper(@Nonnull DataSource ds, @Nonnull String lockName) {
+		List<Object> key = Arrays.<Object>asList(ds, lockName);
+		Sleeper sleeper = sleepers.get(key);
+		if (sleeper == null) {
+			sleeper = new Sleeper(ds, lockName);
+			Sleeper existing = sleepers.putIfAbsent(key, sleeper);
+			if (existing != null)
+				sleeper = existing;
+		}
+		return sleeper;
+	}
+
+	public long awaitNanos(long nanosTimeout) throws InterruptedException {
+		return sleeper.awaitNanos(nanosTimeout);
+	}
+
+	public void await() throws InterruptedException {
+		sleeper.awaitNanos(Long.MAX_VALUE);
+	}
+
+	public void awaitUninterruptibly() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public boolean await(long time, TimeUnit unit) throws InterruptedException {
+		return awaitNanos(unit.toNanos(time)) > 0;
+	}
+
+	public boolean awaitUntil(Date deadline) throws InterruptedException {
+		long duration = deadline.getTime() - System.currentTimeMillis();
+		return awaitNanos(TimeUnit.MILLISECONDS.toNanos(duration)) > 0;
+	}
+
+	/**
+	 * Wakes a local thread if there is one, otherwise one in another process
+	 */
+	public void signal() {
+		if (!sleeper.signal())
+			sleeper.condition.signal();
+	}
+
+	/**
+	 * Wakes every local thread, and every thread in other processes
+	 */
+	public void signalAll() {
+		sleeper.signalAll();
+		sleeper.condition.signalAll();
+	}
+}
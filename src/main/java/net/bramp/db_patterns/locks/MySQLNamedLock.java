@@ -0,0 +1,450 @@
+package net.bramp.db_patterns.locks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed Lock based on the MySQL GET_LOCK() and RELEASE_LOCK() functions.
+ * <p/>
+ * Threads in the same JVM first queue on a local ReentrantLock shared by every
+ * MySQLNamedLock with the same DataSource and lock name, so only the local holder
+ * uses a connection to wait for the named lock. The lock is reentrant, and only the
+ * outermost lock() and unlock() touch the database. A local lock is only kept while
+ * some thread holds or waits for it, so any number of lock names can be used.
+ * <p/>
+ * The named lock belongs to the connection it was taken on, so that connection is kept
+ * until the lock is released. If the connection is lost, MySQL releases the lock.
+ * Before MySQL 5.7 a connection can only hold one named lock at a time, which is why
+ * each lock uses its own connection. Lock names are limited to 64 characters.
+ *
+ * @author bramp
+ */
+public class MySQLNamedLock implements Lock {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLNamedLock.class);
+
+	final static String getLockQuery = "SELECT GET_LOCK(?, ?)";
+	final static String releaseLockQuery = "SELECT RELEASE_LOCK(?)";
+
+	final static long LOCK_WAIT = 1000000000L; // in ns, how often lock() checks for interrupts
+	final static long POLL_INTERVAL = 50; // in ms, GET_LOCK only waits whole seconds
+
+	/**
+	 * One local lock per DataSource and lock name, while it is in use. Guarded by itself.
+	 */
+	final static Map<List<Object>, LocalLock> locals = new HashMap<List<Object>, LocalLock>();
+
+	final DataSource ds;
+	final String lockName;
+	final List<Object> key;
+
+	/**
+	 * The local lock, and the connection holding the named lock while it is held
+	 */
+	static class LocalLock {
+		final ReentrantLock lock = new ReentrantLock();
+		Connection connection; // Guarded by lock
+		int users = 0; // Holds, and threads trying to lock. Guarded by locals
+	}
+
+	/**
+	 * A Condition that releases the lock while it waits on a {@link MySQLSleepBasedCondition}.
+	 * If the underlying condition uses generations, the generation is read before the
+	 * lock is released, so a signal made after that can't be missed.
+	 */
+	public class LockCondition implements Condition {
+
+		final MySQLSleepBasedCondition condition;
+
+		LockCondition(@Nonnull MySQLSleepBasedCondition condition) {
+			this.condition = condition;
+		}
+
+		/**
+		 * The underlying condition, for configuration
+		 *
+		 * @return
+		 */
+		public MySQLSleepBasedCondition getCondition() {
+			return condition;
+		}
+
+		/**
+		 * Releases the lock, waits, and takes the lock again, even if interrupted
+		 *
+		 * @return true if signalled, false if timeout
+		 */
+		protected boolean awaitNanosInternal(long nanosTimeout, boolean forever) throws InterruptedException {
+			if (!isHeldByCurrentThread())
+				throw new IllegalMonitorStateException();
+
+			final long generation = condition.isUsingGenerations() ? condition.getGeneration() : -1;
+
+			final int holds = current().lock.getHoldCount();
+			for (int i = 0; i < holds; i++)
+				unlock();
+
+			try {
+				if (generation < 0) {
+					if (forever) {
+						condition.await();
+						return true;
+					}
+					// Not awaitNanos, which returns the time waited, rather than the time left
+					return condition.await(nanosTimeout, TimeUnit.NANOSECONDS);
+				}
+
+				while (true) {
+					long wait = forever ? MySQLSleepBasedCondition.DEFAULT_WAIT : nanosTimeout;
+					if (condition.awaitChange(generation, wait, TimeUnit.NANOSECONDS))
+						return true;
+
+					if (!forever)
+						return false;
+
+					if (Thread.interrupted())
+						throw new InterruptedException();
+				}
+
+			} finally {
+				for (int i = 0; i < holds; i++)
+					lock();
+			}
+		}
+
+		public void await() throws InterruptedException {
+			awaitNanosInternal(0, true);
+		}
+
+		public void awaitUninterruptibly() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			final long deadline = System.nanoTime() + nanosTimeout;
+			boolean woken = awaitNanosInternal(nanosTimeout, false);
+			long remaining = deadline - System.nanoTime();
+			return woken ? Math.max(remaining, 1) : Math.min(remaining, 0);
+		}
+
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			return awaitNanosInternal(unit.toNanos(time), false);
+		}
+
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			long duration = deadline.getTime() - System.currentTimeMillis();
+			return awaitNanosInternal(TimeUnit.MILLISECONDS.toNanos(duration), false);
+		}
+
+		public void signal() {
+			if (!isHeldByCurrentThread())
+				throw new IllegalMonitorStateException();
+			condition.signal();
+		}
+
+		public void signalAll() {
+			if (!isHeldByCurrentThread())
+				throw new IllegalMonitorStateException();
+			condition.signalAll();
+		}
+	}
+
+	public MySQLNamedLock(@Nonnull DataSource ds, @Nonnull String lockName) {
+		this.ds = ds;
+		this.lockName = lockName;
+		this.key = Arrays.<Object>asList(ds, lockName);
+	}
+
+	/**
+	 * Finds or makes the local lock, counting us as a user, so it is kept until we leave
+	 */
+	LocalLock join() {
+		synchronized (locals) {
+			LocalLock local = locals.get(key);
+			if (local == null) {
+				local = new LocalLock();
+				locals.put(key, local);
+			}
+			local.users++;
+			return local;
+		}
+	}
+
+	/**
+	 * Stops counting us as a user, forgetting the local lock once it has none
+	 */
+	void leave(@Nonnull LocalLock local) {
+		synchronized (locals) {
+			if (--local.users == 0)
+				locals.remove(key);
+		}
+	}
+
+	/**
+	 * @return The local lock, or null if no one is using it
+	 */
+	LocalLock current() {
+		synchronized (locals) {
+			return locals.get(key);
+		}
+	}
+
+	/**
+	 * Undoes a lock attempt that failed
+	 *
+	 * @param held If the local lock was taken
+	 */
+	void abandon(@Nonnull LocalLock local, boolean held) {
+		try {
+			if (held)
+				local.lock.unlock();
+		} finally {
+			leave(local);
+		}
+	}
+
+	public String getLockName() {
+		return lockName;
+	}
+
+	public boolean isHeldByCurrentThread() {
+		LocalLock local = current();
+		return local != null && local.lock.isHeldByCurrentThread();
+	}
+
+	/**
+	 * Takes the named lock, on a new connection kept while the lock is held
+	 *
+	 * @param nanosTimeout How long to wait, or negative to wait forever
+	 * @param interruptible
+	 * @return true if the lock was taken, false if timeout
+	 * @throws InterruptedException
+	 */
+	protected boolean acquire(@Nonnull LocalLock local, long nanosTimeout, boolean interruptible) throws InterruptedException {
+		final long deadline = System.nanoTime() + nanosTimeout;
+
+		boolean interrupted = false;
+		try {
+			Connection c = ds.getConnection();
+			try {
+				while (true) {
+					long wait = nanosTimeout < 0 ? LOCK_WAIT : Math.min(deadline - System.nanoTime(), LOCK_WAIT);
+					if (getLock(c, Math.max(wait, 0))) {
+						local.connection = c;
+						c = null;
+						return true;
+					}
+
+					long remaining = deadline - System.nanoTime();
+					if (nanosTimeout >= 0 && remaining <= 0)
+						return false;
+
+					// Less than a second left, so GET_LOCK returned straight away
+					if (nanosTimeout >= 0 && remaining < LOCK_WAIT) {
+						try {
+							Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, POLL_INTERVAL));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					if (Thread.interrupted()) {
+						if (interruptible)
+							throw new InterruptedException();
+						interrupted = true;
+					}
+				}
+
+			} finally {
+				if (c != null)
+					c.close();
+
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected boolean getLock(@Nonnull Connection c, long nanosTimeout) throws SQLException {
+		PreparedStatement s = c.prepareStatement(getLockQuery);
+		try {
+			s.setString(1, lockName);
+			s.setLong(2, TimeUnit.NANOSECONDS.toSeconds(nanosTimeout));
+
+			ResultSet rs = s.executeQuery();
+			if (!rs.next())
+				return false;
+
+			int ret = rs.getInt(1);
+			if (rs.wasNull())
+				throw new SQLException("GET_LOCK('" + lockName + "') failed");
+
+			return ret == 1;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Releases the named lock, and closes its connection
+	 */
+	protected void release(@Nonnull LocalLock local) {
+		Connection c = local.connection;
+		local.connection = null;
+
+		try {
+			try {
+				PreparedStatement s = c.prepareStatement(releaseLockQuery);
+				try {
+					s.setString(1, lockName);
+
+					ResultSet rs = s.executeQuery();
+					if (!rs.next() || rs.getInt(1) != 1)
+						LOG.warn("Named lock '{}' was lost before it was released", lockName);
+
+				} finally {
+					s.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void lock() {
+		LocalLock local = join();
+		boolean held = false;
+		boolean locked = false;
+		try {
+			local.lock.lock();
+			held = true;
+			locked = local.lock.getHoldCount() > 1 || acquire(local, -1, false);
+
+		} catch (InterruptedException e) {
+			// Not thrown when uninterruptible
+			throw new IllegalStateException(e);
+
+		} finally {
+			if (!locked)
+				abandon(local, held);
+		}
+	}
+
+	public void lockInterruptibly() throws InterruptedException {
+		LocalLock local = join();
+		boolean held = false;
+		boolean locked = false;
+		try {
+			local.lock.lockInterruptibly();
+			held = true;
+			locked = local.lock.getHoldCount() > 1 || acquire(local, -1, true);
+		} finally {
+			if (!locked)
+				abandon(local, held);
+		}
+	}
+
+	public boolean tryLock() {
+		LocalLock local = join();
+		boolean held = false;
+		boolean locked = false;
+		try {
+			held = local.lock.tryLock();
+			locked = held && (local.lock.getHoldCount() > 1 || acquire(local, 0, false));
+
+		} catch (InterruptedException e) {
+			// Not thrown when uninterruptible
+			throw new IllegalStateException(e);
+
+		} finally {
+			if (!locked)
+				abandon(local, held);
+		}
+		return locked;
+	}
+
+	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(time);
+
+		LocalLock local = join();
+		boolean held = false;
+		boolean locked = false;
+		try {
+			held = local.lock.tryLock(time, unit);
+			locked = held && (local.lock.getHoldCount() > 1 || acquire(local, Math.max(deadline - System.nanoTime(), 0), true));
+		} finally {
+			if (!locked)
+				abandon(local, held);
+		}
+		return locked;
+	}
+
+	public void unlock() {
+		LocalLock local = current();
+		if (local == null || !local.lock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException();
+
+		try {
+			if (local.lock.getHoldCount() == 1)
+				release(local);
+		} finally {
+			local.lock.unlock();
+			leave(local);
+		}
+	}
+
+	/**
+	 * A condition named after this lock. Every process using the lock name shares it.
+	 *
+	 * @return
+	 */
+	public LockCondition newCondition() {
+		return newCondition(lockName);
+	}
+
+	/**
+	 * A condition with its own name, for when one lock guards several conditions
+	 *
+	 * @param conditionName
+	 * @return
+	 */
+	public LockCondition newCondition(@Nonnull String conditionName) {
+		return new LockCondition(new MySQLSleepBasedCondition(ds, conditionName));
+	}
+}
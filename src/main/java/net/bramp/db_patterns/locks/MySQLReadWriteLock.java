@@ -0,0 +1,693 @@
+package net.bramp.db_patterns.locks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A distributed ReadWriteLock, for many readers and rare writers.
+ * <p/>
+ * Locally, threads share a ReentrantReadWriteLock per DataSource and lock name. The
+ * local readers are counted in memory, and while there are any, the JVM holds one
+ * registration in the rwlock_reader table, on a connection kept open until the last
+ * local reader leaves. Only the first and last local reader touch the database.
+ * <p/>
+ * A writer takes a {@link MySQLNamedLock} (the gate), which stops new registrations,
+ * then waits for the existing registrations to drain. The last reader in each JVM
+ * signals a {@link MySQLSleepBasedCondition} (using generations) if the gate is held,
+ * so the writer sleeps instead of polling. Registrations whose connection has gone are
+ * removed when the writer starts waiting, and again every {@link #STALE_RECHECK} it
+ * goes unsignalled, so a crashed JVM can't block writers for long.
+ * <p/>
+ * As with ReentrantReadWriteLock, a writer can take the read lock (downgrading), but a
+ * reader can't take the write lock. Writers wait while a JVM's local readers overlap
+ * without a break. Only the write lock supports {@link #newCondition()}.
+ * <p/>
+ * If a registration can't be deleted, its connection is aborted rather than returned
+ * to the pool, and the row is deleted on a new connection, so writers aren't blocked
+ * by a pooled connection that still looks alive.
+ * <p/>
+ * CREATE TABLE rwlock_reader (
+ *     lock_name     VARCHAR(255) NOT NULL,
+ *     connection_id BIGINT UNSIGNED NOT NULL, -- Connection holding the JVM's registration
+ *     since         TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+ *     PRIMARY KEY (lock_name, connection_id)
+ * ) ENGINE=MEMORY DEFAULT CHARSET=UTF8;
+ * <p/>
+ * The condition_generation table from {@link MySQLSleepBasedCondition} is also needed.
+ *
+ * @author bramp
+ */
+public class MySQLReadWriteLock implements ReadWriteLock {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLReadWriteLock.class);
+
+	final static String registerQuery = "INSERT INTO rwlock_reader (lock_name, connection_id) VALUES (?, CONNECTION_ID())";
+	final static String unregisterQuery = "DELETE FROM rwlock_reader WHERE lock_name = ? AND connection_id = CONNECTION_ID()";
+	final static String removeQuery = "DELETE FROM rwlock_reader WHERE lock_name = ? AND connection_id = ?";
+
+	final static String removeStaleQuery =
+			"DELETE FROM rwlock_reader WHERE lock_name = ? AND " +
+					"connection_id NOT IN (SELECT ID FROM INFORMATION_SCHEMA.PROCESSLIST)";
+
+	final static String countQuery = "SELECT COUNT(*) FROM rwlock_reader WHERE lock_name = ?";
+
+	final static String isUsedQuery = "SELECT IS_USED_LOCK(?)";
+
+	final static String connectionIdQuery = "SELECT CONNECTION_ID();";
+
+	final static long STALE_RECHECK = 30000000000L; // in ns, how often a waiting writer checks for dead readers
+
+	/**
+	 * One set of local state per DataSource and lock name
+	 */
+	final static ConcurrentMap<List<Object>, Shared> shareds = new ConcurrentHashMap<List<Object>, Shared>();
+
+	/**
+	 * Aborts connections on the calling thread
+	 */
+	final static Executor abortExecutor = new Executor() {
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	final DataSource ds;
+	final String lockName;
+	final Shared shared;
+
+	final MySQLNamedLock gate;
+	final MySQLSleepBasedCondition drained;
+
+	final Lock readLock = new ReadLock();
+	final Lock writeLock = new WriteLock();
+
+	/**
+	 * The local lock, and this JVM's reader registration
+	 */
+	static class Shared {
+		final ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+		final ReentrantLock registration = new ReentrantLock();
+
+		// Guarded by registration
+		int readers = 0;       // Read holds in this JVM
+		Connection connection; // Holding the registration while readers > 0
+		long connectionId;     // of connection
+	}
+
+	/**
+	 * A Condition for the write lock. Waiting releases every hold of the write lock, so
+	 * readers and other writers can get in, then takes it again, waiting for the readers
+	 * to drain, before returning. A writer also holding the read lock would wait for
+	 * itself to drain, so can't wait.
+	 * <p/>
+	 * The generation is read before the write lock is released, so a signal made after
+	 * that can't be missed.
+	 */
+	public class WriteCondition implements Condition {
+
+		final MySQLSleepBasedCondition condition;
+
+		WriteCondition(@Nonnull MySQLSleepBasedCondition condition) {
+			this.condition = condition;
+		}
+
+		/**
+		 * The underlying condition, for configuration
+		 *
+		 * @return
+		 */
+		public MySQLSleepBasedCondition getCondition() {
+			return condition;
+		}
+
+		/**
+		 * Releases the write lock, waits, and takes the write lock again, even if interrupted
+		 *
+		 * @return true if signalled, false if timeout
+		 */
+		protected boolean awaitNanosInternal(long nanosTimeout, boolean forever) throws InterruptedException {
+			if (!shared.local.isWriteLockedByCurrentThread() || shared.local.getReadHoldCount() > 0)
+				throw new IllegalMonitorStateException();
+
+			final long generation = condition.getGeneration();
+
+			final int holds = shared.local.getWriteHoldCount();
+			for (int i = 0; i < holds; i++)
+				writeLock.unlock();
+
+			try {
+				while (true) {
+					long wait = forever ? MySQLSleepBasedCondition.DEFAULT_WAIT : nanosTimeout;
+					if (condition.awaitChange(generation, wait, TimeUnit.NANOSECONDS))
+						return true;
+
+					if (!forever)
+						return false;
+
+					if (Thread.interrupted())
+						throw new InterruptedException();
+				}
+
+			} finally {
+				for (int i = 0; i < holds; i++)
+					writeLock.lock();
+			}
+		}
+
+		public void await() throws InterruptedException {
+			awaitNanosInternal(0, true);
+		}
+
+		public void awaitUninterruptibly() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			final long deadline = System.nanoTime() + nanosTimeout;
+			boolean woken = awaitNanosInternal(nanosTimeout, false);
+			long remaining = deadline - System.nanoTime();
+			return woken ? Math.max(remaining, 1) : Math.min(remaining, 0);
+		}
+
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			return awaitNanosInternal(unit.toNanos(time), false);
+		}
+
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			long duration = deadline.getTime() - System.currentTimeMillis();
+			return awaitNanosInternal(TimeUnit.MILLISECONDS.toNanos(duration), false);
+		}
+
+		public void signal() {
+			if (!shared.local.isWriteLockedByCurrentThread())
+				throw new IllegalMonitorStateException();
+			condition.signal();
+		}
+
+		public void signalAll() {
+			if (!shared.local.isWriteLockedByCurrentThread())
+				throw new IllegalMonitorStateException();
+			condition.signalAll();
+		}
+	}
+
+	class ReadLock implements Lock {
+
+		protected boolean lock(long nanosTimeout, boolean interruptible) throws InterruptedException {
+			final long deadline = System.nanoTime() + nanosTimeout;
+
+			if (!acquire(shared.local.readLock(), nanosTimeout, interruptible))
+				return false;
+
+			boolean locked = false;
+			try {
+				locked = join(remaining(deadline, nanosTimeout), interruptible);
+			} finally {
+				if (!locked)
+					shared.local.readLock().unlock();
+			}
+			return locked;
+		}
+
+		public void lock() {
+			try {
+				lock(-1, false);
+			} catch (InterruptedException e) {
+				// Not thrown when uninterruptible
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void lockInterruptibly() throws InterruptedException {
+			lock(-1, true);
+		}
+
+		public boolean tryLock() {
+			try {
+				return lock(0, true);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			return lock(unit.toNanos(time), true);
+		}
+
+		public void unlock() {
+			if (shared.local.getReadHoldCount() == 0)
+				throw new IllegalMonitorStateException();
+
+			try {
+				leave();
+			} finally {
+				shared.local.readLock().unlock();
+			}
+		}
+
+		public Condition newCondition() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	class WriteLock implements Lock {
+
+		protected boolean lock(long nanosTimeout, boolean interruptible) throws InterruptedException {
+			final long deadline = System.nanoTime() + nanosTimeout;
+
+			ReentrantReadWriteLock.WriteLock local = shared.local.writeLock();
+			if (!acquire(local, nanosTimeout, interruptible))
+				return false;
+
+			if (local.getHoldCount() > 1)
+				return true;
+
+			boolean locked = false;
+			try {
+				if (!acquire(gate, remaining(deadline, nanosTimeout), interruptible))
+					return false;
+
+				try {
+					locked = awaitDrained(remaining(deadline, nanosTimeout), interruptible);
+				} finally {
+					if (!locked)
+						gate.unlock();
+				}
+				return locked;
+
+			} finally {
+				if (!locked)
+					local.unlock();
+			}
+		}
+
+		public void lock() {
+			try {
+				lock(-1, false);
+			} catch (InterruptedException e) {
+				// Not thrown when uninterruptible
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void lockInterruptibly() throws InterruptedException {
+			lock(-1, true);
+		}
+
+		public boolean tryLock() {
+			try {
+				return lock(0, true);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			return lock(unit.toNanos(time), true);
+		}
+
+		public void unlock() {
+			ReentrantReadWriteLock.WriteLock local = shared.local.writeLock();
+			if (!local.isHeldByCurrentThread())
+				throw new IllegalMonitorStateException();
+
+			try {
+				if (local.getHoldCount() == 1)
+					gate.unlock();
+			} finally {
+				local.unlock();
+			}
+		}
+
+		/**
+		 * A condition named after this lock. Every process using the lock name shares it.
+		 */
+		public WriteCondition newCondition() {
+			MySQLSleepBasedCondition condition = new MySQLSleepBasedCondition(ds, lockName + "-write");
+			condition.setUseGenerations(true);
+			return new WriteCondition(condition);
+		}
+	}
+
+	public MySQLReadWriteLock(@Nonnull DataSource ds, @Nonnull String lockName) {
+		this.ds = ds;
+		this.lockName = lockName;
+		this.shared = getShared(ds, lockName);
+
+		this.gate = new MySQLNamedLock(ds, lockName + "-gate");
+		this.drained = new MySQLSleepBasedCondition(ds, lockName + "-drained");
+		this.drained.setUseGenerations(true);
+	}
+
+	static Shared getShared(@Nonnull DataSource ds, @Nonnull String lockName) {
+		List<Object> key = Arrays.<Object>asList(ds, lockName);
+		Shared shared = shareds.get(key);
+		if (shared == null) {
+			shared = new Shared();
+			Shared existing = shareds.putIfAbsent(key, shared);
+			if (existing != null)
+				shared = existing;
+		}
+		return shared;
+	}
+
+	public Lock readLock() {
+		return readLock;
+	}
+
+	public Lock writeLock() {
+		return writeLock;
+	}
+
+	static long remaining(long deadline, long nanosTimeout) {
+		if (nanosTimeout < 0)
+			return -1;
+		return Math.max(deadline - System.nanoTime(), 0);
+	}
+
+	/**
+	 * @param nanosTimeout How long to wait, or negative to wait forever
+	 * @return true if the lock was taken, false if timeout
+	 */
+	static boolean acquire(@Nonnull Lock lock, long nanosTimeout, boolean interruptible) throws InterruptedException {
+		if (nanosTimeout >= 0)
+			return lock.tryLock(nanosTimeout, TimeUnit.NANOSECONDS);
+
+		if (interruptible)
+			lock.lockInterruptibly();
+		else
+			lock.lock();
+		return true;
+	}
+
+	/**
+	 * Counts a local reader, registering this JVM if it is the first
+	 */
+	protected boolean join(long nanosTimeout, boolean interruptible) throws InterruptedException {
+		final long deadline = System.nanoTime() + nanosTimeout;
+
+		if (!acquire(shared.registration, nanosTimeout, interruptible))
+			return false;
+
+		try {
+			if (shared.readers == 0) {
+				// The gate stops us registering while a writer is waiting, or holds the lock
+				if (!acquire(gate, remaining(deadline, nanosTimeout), interruptible))
+					return false;
+
+				try {
+					register();
+				} finally {
+					gate.unlock();
+				}
+			}
+
+			shared.readers++;
+			return true;
+
+		} finally {
+			shared.registration.unlock();
+		}
+	}
+
+	/**
+	 * Stops counting a local reader, unregistering this JVM if it was the last
+	 */
+	protected void leave() {
+		shared.registration.lock();
+		try {
+			if (shared.readers <= 0)
+				throw new IllegalMonitorStateException();
+
+			if (--shared.readers == 0)
+				unregister();
+
+		} finally {
+			shared.registration.unlock();
+		}
+	}
+
+	protected void register() {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				long connectionId = getConnectionId(c);
+
+				PreparedStatement s = c.prepareStatement(registerQuery);
+				try {
+					s.setString(1, lockName);
+					s.execute();
+				} finally {
+					s.close();
+				}
+
+				shared.connection = c;
+				shared.connectionId = connectionId;
+				c = null;
+
+			} finally {
+				if (c != null)
+					c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void unregister() {
+		Connection c = shared.connection;
+		shared.connection = null;
+
+		boolean unregistered = false;
+		try {
+			try {
+				PreparedStatement s = c.prepareStatement(unregisterQuery);
+				try {
+					s.setString(1, lockName);
+					s.execute();
+				} finally {
+					s.close();
+				}
+				unregistered = true;
+
+				// Only wake writers if one holds the gate
+				if (isGateUsed(c))
+					drained.signalAll();
+
+			} finally {
+				if (unregistered)
+					c.close();
+				else
+					discard(c);
+			}
+
+		} catch (SQLException e) {
+			if (unregistered || !remove(shared.connectionId))
+				throw new RuntimeException(e);
+
+			LOG.warn("Failed to unregister from '{}', so removed the registration on another connection", lockName, e);
+		}
+	}
+
+	/**
+	 * Deletes a registration using a new connection, for when its own connection failed
+	 *
+	 * @return true if the registration is gone
+	 */
+	protected boolean remove(long connectionId) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(removeQuery);
+				try {
+					s.setString(1, lockName);
+					s.setLong(2, connectionId);
+					s.execute();
+				} finally {
+					s.close();
+				}
+
+				if (isGateUsed(c))
+					drained.signalAll();
+
+				return true;
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			LOG.error("Failed to remove the registration on '{}' for connection {}", new Object[] {lockName, connectionId, e});
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the physical connection, instead of returning it to the pool alive, as
+	 * its registration may still be in the table
+	 */
+	protected void discard(@Nonnull Connection c) {
+		try {
+			c.abort(abortExecutor);
+		} catch (SQLException e) {
+			LOG.warn("Failed to abort the connection registered on '{}'", lockName, e);
+		}
+
+		try {
+			// Lets the pool know the connection has gone
+			c.close();
+		} catch (SQLException e) {
+			LOG.debug("Failed to close an aborted connection", e);
+		}
+	}
+
+	protected long getConnectionId(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(connectionIdQuery);
+		try {
+			ResultSet rs = s.executeQuery();
+			if (rs.next())
+				return rs.getLong(1);
+
+			throw new SQLException("Failed to retrieve connection id");
+
+		} finally {
+			s.close();
+		}
+	}
+
+	protected boolean isGateUsed(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(isUsedQuery);
+		try {
+			s.setString(1, gate.getLockName());
+
+			ResultSet rs = s.executeQuery();
+			if (!rs.next())
+				return false;
+
+			rs.getLong(1);
+			return !rs.wasNull();
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * @param removeStale Remove registrations whose connection has gone first
+	 * @return The number of JVMs with readers
+	 */
+	protected int countReaders(boolean removeStale) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s;
+				if (removeStale) {
+					s = c.prepareStatement(removeStaleQuery);
+					try {
+						s.setString(1, lockName);
+						int stale = s.executeUpdate();
+						if (stale > 0)
+							LOG.warn("Removed {} stale reader registrations for '{}'", stale, lockName);
+					} finally {
+						s.close();
+					}
+				}
+
+				s = c.prepareStatement(countQuery);
+				try {
+					s.setString(1, lockName);
+
+					ResultSet rs = s.executeQuery();
+					if (rs.next())
+						return rs.getInt(1);
+					return 0;
+
+				} finally {
+					s.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Waits, holding the gate, until no JVM has readers. Only recounts when the last
+	 * reader in a JVM signals, except for the stale check every {@link #STALE_RECHECK}.
+	 *
+	 * @return true if drained, false if timeout
+	 */
+	protected boolean awaitDrained(long nanosTimeout, boolean interruptible) throws InterruptedException {
+		final long deadline = System.nanoTime() + nanosTimeout;
+
+		boolean interrupted = false;
+		boolean removeStale = true;
+		try {
+			while (true) {
+				// Read the generation first, so the last reader leaving after the count wakes us
+				final long generation = drained.getGeneration();
+				if (countReaders(removeStale) == 0)
+					return true;
+
+				long wait = STALE_RECHECK;
+				if (nanosTimeout >= 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return false;
+					wait = Math.min(wait, remaining);
+				}
+
+				try {
+					// Unsignalled for the whole wait, so check for dead readers next time
+					removeStale = !drained.awaitChange(generation, wait, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					if (interruptible)
+						throw e;
+					interrupted = true;
+				}
+			}
+
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
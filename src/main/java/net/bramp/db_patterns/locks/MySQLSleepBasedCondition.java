@@ -5,14 +5,35 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.sql.DataSource;
 
+import net.bramp.sql.Placeholders;
 import net.bramp.sql.ResultSetFilter;
 import net.bramp.sql.ResultSets;
 
@@ -21,6 +42,35 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Uses the MySQL sleep() / kill to implement a distributed Condition
+ * <p/>
+ * A condition can be created over several lock names, in which case await()
+ * returns when any of them are signalled. Lock names must not contain a comma.
+ * <p/>
+ * By default waiters are found by searching the processlist. Alternatively, with
+ * {@link #setUseWaiterTable(boolean)}, waiters register in a table, so signal() is a
+ * indexed lookup however busy the server is. Every node must use the same mode.
+ * <p/>
+ * With {@link #setUseGenerations(boolean)}, each signal also moves on a counter
+ * per lock name, and a waiter only sleeps if the counter has not moved since it last
+ * looked, see {@link #getGeneration()} and {@link #awaitChange(long, long, TimeUnit)}.
+ * Together with the waiter table, no signal is lost.
+ * <p/>
+ * CREATE TABLE condition_generation (
+ *     lock_name     VARCHAR(255) NOT NULL,
+ *     generation    BIGINT UNSIGNED NOT NULL, -- Incremented on every signal
+ *     PRIMARY KEY (lock_name)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ * <p/>
+ * CREATE TABLE condition_waiter (
+ *     id            BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
+ *     lock_name     VARCHAR(255) NOT NULL,
+ *     waiter_id     BIGINT UNSIGNED NOT NULL, -- Same for each of a waiter's lock names
+ *     connection_id BIGINT UNSIGNED NOT NULL, -- Connection blocked in SLEEP()
+ *     since         TIMESTAMP NOT NULL,
+ *     PRIMARY KEY (id),
+ *     KEY (lock_name, id),
+ *     KEY (waiter_id)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8; -- Row locks keep a waiter from leaving while it is killed
  *
  * @author bramp
  */
@@ -32,19 +82,143 @@ public class MySQLSleepBasedCondition implements Condition {
 
 	final static String sleepQuery = "SELECT SLEEP(?), ?;";
 	final static String wakeQuery = "KILL QUERY ?;";
+	final static String connectionIdQuery = "SELECT CONNECTION_ID();";
+
+	/**
+	 * Matches the sleepQuery as shown in the processlist, capturing the lock names
+	 */
+	final static Pattern sleepPattern = Pattern.compile("SELECT SLEEP\\(([\\d.]+|IF\\(.*\\))\\), '(.*)';?", Pattern.DOTALL);
+	final static String LOCK_NAME_SEPARATOR = ",";
+
+	final static String listQueryPerfSchema = // MySQL 5.6 or newer, with performance_schema enabled
+		"SELECT PROCESSLIST_ID, PROCESSLIST_USER, PROCESSLIST_HOST, PROCESSLIST_DB, PROCESSLIST_COMMAND, " +
+		"PROCESSLIST_TIME, PROCESSLIST_STATE, PROCESSLIST_INFO FROM " +
+		"performance_schema.threads " +
+		"WHERE PROCESSLIST_STATE = 'User sleep' AND PROCESSLIST_INFO LIKE ? " +
+		"ORDER BY PROCESSLIST_TIME DESC";
 
 	final static String listQueryNew =  // MySQL 5.1.7 or newer
 		"SELECT Id, User, Host, Db, Command, Time, State, Info FROM " +
 		"INFORMATION_SCHEMA.PROCESSLIST " +
 		"WHERE STATE = 'User sleep' AND INFO LIKE ? " +
-		"ORDER BY TIME";
+		"ORDER BY TIME DESC";
 
 	final static String listQueryOld = "SHOW PROCESSLIST;";
 
-	final boolean useListQueryNew = false;
+	/**
+	 * performance_schema.threads is empty when the performance schema is disabled,
+	 * so check it can see our own thread
+	 */
+	final static String perfSchemaProbeQuery = "SELECT COUNT(*) FROM performance_schema.threads WHERE PROCESSLIST_ID = CONNECTION_ID()";
+
+	/**
+	 * Looks up the given threads, to check they are still sleeping
+	 */
+	final static String threadsQueryPerfSchema =
+		"SELECT PROCESSLIST_ID, PROCESSLIST_STATE, PROCESSLIST_INFO FROM performance_schema.threads WHERE PROCESSLIST_ID IN (%s)";
+
+	final static String threadsQueryNew = "SELECT ID, STATE, INFO FROM INFORMATION_SCHEMA.PROCESSLIST WHERE ID IN (%s)";
+
+	final static Pattern versionPattern = Pattern.compile("^(\\d+)\\.(\\d+)\\.(\\d+)");
+
+	/**
+	 * The sum of the generations of a condition's lock names. Moves on every signal.
+	 */
+	final static String generationQuery = "SELECT COALESCE(SUM(generation), 0) FROM condition_generation WHERE lock_name IN (%s)";
+	final static String incrementQuery =
+			"INSERT INTO condition_generation (lock_name, generation) VALUES (?, 1) " +
+					"ON DUPLICATE KEY UPDATE generation = generation + 1";
+
+	/**
+	 * Only sleeps if the generation has not moved on. The check and the sleep are one
+	 * statement, so a signal either moves the generation before the check, or kills the sleep.
+	 */
+	final static String conditionalSleepQuery = "SELECT SLEEP(IF((" + generationQuery + ") = ?, ?, 0)), ?;";
+
+	final static String registerQuery = "INSERT INTO condition_waiter (lock_name, waiter_id, connection_id, since) VALUES (?, ?, ?, NOW())";
+	final static String unregisterQuery = "DELETE FROM condition_waiter WHERE waiter_id = ?";
+	final static String waitersQuery = "SELECT waiter_id, connection_id FROM condition_waiter WHERE lock_name IN (%s) ORDER BY id ASC LIMIT ?";
+
+	/**
+	 * How many registered waiters signal() reads at a time
+	 */
+	final static int WAITERS_BATCH_SIZE = 10;
+
+	/**
+	 * Error returned when our query is killed, by a late signal
+	 */
+	final static int ER_QUERY_INTERRUPTED = 1317;
+
+	/**
+	 * Error returned when killing a connection that has gone
+	 */
+	final static int ER_NO_SUCH_THREAD = 1094;
+
+	/**
+	 * The list query each server supports, detected on first use. Weak, so a
+	 * DataSource that is no longer used can be collected.
+	 */
+	final static Map<DataSource, String> listQueries = Collections.synchronizedMap(new WeakHashMap<DataSource, String>());
+
+	/**
+	 * Runs the merged signals that arrive while a caller is signalling, so no
+	 * caller is kept signalling on behalf of others for long
+	 */
+	final static ExecutorService signaller = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "MySQLSleepBasedCondition-signaller");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Threads in this JVM currently waiting, keyed by DataSource and lock name, oldest first.
+	 * Shared between all instances so a local signal() can find a local waiter
+	 * without scanning the processlist.
+	 */
+	final static ConcurrentMap<List<Object>, Queue<Waiter>> localWaiters = new ConcurrentHashMap<List<Object>, Queue<Waiter>>();
+
+	/**
+	 * A thread in this JVM blocked in SLEEP() on a known connection
+	 */
+	static class Waiter {
+		final static int WAITING = 0;
+		final static int SIGNALLED = 1;
+		final static int DONE = 2;
+
+		final long connectionId;
+		final long waiterId; // In the condition_waiter table, or 0 if not registered
+		final boolean conditional; // Sleeps only if the generation has not moved
+		int state = WAITING; // Guarded by this
+
+		Waiter(long connectionId, long waiterId, boolean conditional) {
+			this.connectionId = connectionId;
+			this.waiterId = waiterId;
+			this.conditional = conditional;
+		}
+	}
 
 	final DataSource ds;
-	final String lockName;
+	final Collection<String> lockNames;
+	final String lockName; // All the lockNames, as shown in the processlist
+
+	final String waitersSql;
+	final String generationSql;
+	final String conditionalSleepSql;
+	final Random random = new Random();
+
+	volatile boolean useWaiterTable = false;
+	volatile boolean useSnapshot = false;
+	volatile boolean useGenerations = false;
+
+	/**
+	 * How long signal() waits to merge with other signals, or -1 to not merge
+	 */
+	volatile long coalesceNanos = -1;
+
+	final AtomicInteger pendingSignals = new AtomicInteger();
+	final AtomicBoolean signalling = new AtomicBoolean();
 
 	final ResultSetFilter.Predicate isOurLockPredicate = new ResultSetFilter.Predicate() {
 
@@ -58,24 +232,198 @@ public class MySQLSleepBasedCondition implements Condition {
 				return false;
 
 			String info = rs.getString(8);
-			return info != null && info.matches("SELECT SLEEP\\([\\d.]+\\), '" + lockName + "'");
+			if (info == null)
+				return false;
+
+			Matcher m = sleepPattern.matcher(info);
+			if (!m.matches())
+				return false;
+
+			for (String name : m.group(2).split(LOCK_NAME_SEPARATOR)) {
+				if (lockNames.contains(name))
+					return true;
+			}
+			return false;
 		}
 	};
 
 	public MySQLSleepBasedCondition(@Nonnull DataSource ds, @Nonnull String lockName) {
+		this(ds, Collections.singleton(lockName));
+	}
+
+	/**
+	 * A condition that is woken by a signal on any of the lock names.
+	 * signal() wakes one thread waiting on any of the names.
+	 *
+	 * @param ds
+	 * @param lockNames
+	 */
+	public MySQLSleepBasedCondition(@Nonnull DataSource ds, @Nonnull Collection<String> lockNames) {
+		if (lockNames.isEmpty())
+			throw new IllegalArgumentException("At least one lock name is required");
+
+		Collection<String> names = new LinkedHashSet<String>(lockNames);
+
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			if (name.contains(LOCK_NAME_SEPARATOR))
+				throw new IllegalArgumentException("Lock name '" + name + "' must not contain '" + LOCK_NAME_SEPARATOR + "'");
+
+			if (sb.length() > 0)
+				sb.append(LOCK_NAME_SEPARATOR);
+			sb.append(name);
+		}
+
 		this.ds = ds;
-		this.lockName = lockName;
+		this.lockNames = Collections.unmodifiableCollection(names);
+		this.lockName = sb.toString();
+
+		String placeholders = Placeholders.repeat(names.size(), "?", ", ");
+		this.waitersSql = String.format(waitersQuery, placeholders);
+		this.generationSql = String.format(generationQuery, placeholders);
+		this.conditionalSleepSql = String.format(conditionalSleepQuery, placeholders);
 
-		// TODO Detect MySQL version (update useListQueryNew)
 		// TODO Detect if we can sleep/kill
 	}
 
+	/**
+	 * Register waiters in the condition_waiter table, instead of finding them in
+	 * the processlist. Every node using these lock names must use the same mode.
+	 *
+	 * @param useWaiterTable
+	 */
+	public void setUseWaiterTable(boolean useWaiterTable) {
+		this.useWaiterTable = useWaiterTable;
+	}
+
+	/**
+	 * Find waiters in a {@link ProcesslistSnapshot} shared by every condition in
+	 * this JVM, instead of reading the processlist on every signal
+	 *
+	 * @param useSnapshot
+	 */
+	public void setUseProcesslistSnapshot(boolean useSnapshot) {
+		this.useSnapshot = useSnapshot;
+	}
+
+	/**
+	 * Count signals in the condition_generation table, so a waiter can't miss a
+	 * signal made after it last checked its state. Signallers and waiters must
+	 * all use this mode.
+	 *
+	 * @param useGenerations
+	 */
+	public void setUseGenerations(boolean useGenerations) {
+		this.useGenerations = useGenerations;
+	}
+
+	public boolean isUsingGenerations() {
+		return useGenerations;
+	}
+
+	/**
+	 * Returns the current generation. Read it before checking whatever state is being
+	 * waited on, and pass it to {@link #awaitChange(long, long, TimeUnit)}.
+	 *
+	 * @return
+	 */
+	public long getGeneration() {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				return getGeneration(c);
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected long getGeneration(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(generationSql);
+		try {
+			int i = 1;
+			for (String name : lockNames)
+				s.setString(i++, name);
+
+			ResultSet rs = s.executeQuery();
+			if (rs.next())
+				return rs.getLong(1);
+
+			return 0;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Waits until signalled, unless there has been a signal since the generation was read
+	 *
+	 * @param generation As returned by {@link #getGeneration()}
+	 * @param time
+	 * @param unit
+	 * @return true if signalled, or the generation had already moved, false if timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitChange(long generation, long time, TimeUnit unit) throws InterruptedException {
+		if (!useGenerations)
+			throw new IllegalStateException("Generations are not enabled");
+
+		if (generation < 0)
+			throw new IllegalArgumentException("generation must not be negative");
+
+		return awaitNanosInternal(unit.toNanos(time), generation);
+	}
+
+	protected void incrementGenerations(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(incrementQuery);
+		try {
+			for (String name : lockNames) {
+				s.setString(1, name);
+				s.addBatch();
+			}
+			s.executeBatch();
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Merges signal() calls made close together into one processlist scan, that
+	 * wakes one thread per merged signal. The signalling thread waits up to window
+	 * for more, and makes one scan. Signals made during that scan are merged into the
+	 * next one, made by a background thread.
+	 * <p/>
+	 * A merged signal() may return before its thread is woken.
+	 *
+	 * @param window How long to wait for more signals, zero to only merge signals made while
+	 *               one is in progress, or negative to not merge
+	 * @param unit
+	 */
+	public void setSignalCoalescing(long window, TimeUnit unit) {
+		this.coalesceNanos = window < 0 ? -1 : unit.toNanos(window);
+	}
+
 	/**
 	 * @param nanosTimeout The number of nanoseconds to wait
 	 * @return true if awaken (correctly, or spuriously), false if timeout
 	 * @throws InterruptedException
 	 */
 	protected boolean awaitNanosInternal(long nanosTimeout) throws InterruptedException {
+		return awaitNanosInternal(nanosTimeout, -1);
+	}
+
+	/**
+	 * @param nanosTimeout The number of nanoseconds to wait
+	 * @param generation   Only sleep if the generation is still this, or -1 to always sleep
+	 * @return true if awaken (correctly, or spuriously), false if timeout
+	 * @throws InterruptedException
+	 */
+	protected boolean awaitNanosInternal(long nanosTimeout, long generation) throws InterruptedException {
 		if (nanosTimeout <= 0)
 			return false;
 
@@ -84,27 +432,41 @@ public class MySQLSleepBasedCondition implements Condition {
 		try {
 			Connection c = ds.getConnection();
 			try {
-				PreparedStatement s = c.prepareStatement(sleepQuery);
-				try {
+				long connectionId = getConnectionId(c);
 
-					// Adjust nanosTimeout (due to time it took to get a connection)
-					nanosTimeout -= (System.nanoTime() - now);
+				boolean useWaiterTable = this.useWaiterTable;
+				long waiterId = useWaiterTable ? register(c, connectionId) : 0;
 
-					// Convert to seconds, but round to whole number of milliseconds
-					s.setFloat(1, Math.round(nanosTimeout / 1000000.0) / 1000f);
-					s.setString(2, lockName);
-					s.execute();
+				Waiter waiter = new Waiter(connectionId, waiterId, generation >= 0);
 
-					ResultSet rs = s.getResultSet();
-					if (rs != null && rs.next())
-						return rs.getInt(1) == 1;
+				// Published last, so a local KILL can only hit the sleep
+				for (String name : lockNames)
+					getLocalWaiters(ds, name).add(waiter);
 
-					return true;
+				boolean woken = false;
+				try {
+					// Adjust nanosTimeout (due to time it took to get a connection)
+					woken = sleep(c, nanosTimeout - (System.nanoTime() - now), generation);
 
 				} finally {
-					s.close();
+					for (String name : lockNames)
+						getLocalWaiters(ds, name).remove(waiter);
+
+					// Wait for any in-flight local KILL to finish before the connection
+					// goes back to the pool, otherwise it may kill someone else's query
+					synchronized (waiter) {
+						if (waiter.state == Waiter.SIGNALLED)
+							woken = true;
+						waiter.state = Waiter.DONE;
+					}
+
+					// If a signaller already removed us, count it as a wakeup, even if we timed out first
+					if (useWaiterTable && !unregister(c, waiterId))
+						woken = true;
 				}
 
+				return woken;
+
 			} finally {
 				c.close();
 			}
@@ -114,6 +476,181 @@ public class MySQLSleepBasedCondition implements Condition {
 		}
 	}
 
+	/**
+	 * Adds this connection to the condition_waiter table, under each lock name
+	 *
+	 * @return The waiter id
+	 */
+	protected long register(@Nonnull Connection c, long connectionId) throws SQLException {
+		long waiterId = random.nextLong() & Long.MAX_VALUE;
+
+		PreparedStatement s = c.prepareStatement(registerQuery);
+		try {
+			for (String name : lockNames) {
+				s.setString(1, name);
+				s.setLong(2, waiterId);
+				s.setLong(3, connectionId);
+				s.addBatch();
+			}
+			s.executeBatch();
+
+		} finally {
+			s.close();
+		}
+
+		return waiterId;
+	}
+
+	/**
+	 * Removes the waiter from the condition_waiter table. Blocks while a signaller
+	 * is killing us, see {@link #claimAndKill(Connection, long, long)}.
+	 *
+	 * @return false if a signaller had already removed it
+	 */
+	protected boolean unregister(@Nonnull Connection c, long waiterId) throws SQLException {
+		while (true) {
+			PreparedStatement s = c.prepareStatement(unregisterQuery);
+			try {
+				s.setLong(1, waiterId);
+				return s.executeUpdate() > 0;
+
+			} catch (SQLException e) {
+				// A signaller claimed us just as we stopped sleeping, and its KILL hit this query instead
+				if (e.getErrorCode() != ER_QUERY_INTERRUPTED)
+					throw e;
+
+			} finally {
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * Wakes the oldest waiters registered in the condition_waiter table. A waiter is
+	 * claimed by deleting its rows, so only one signaller kills each waiter.
+	 * See {@link #claimAndKill(Connection, long, long)}.
+	 *
+	 * @param max The most waiters to wake
+	 * @return The number of waiters woken
+	 */
+	protected int signalTable(@Nonnull Connection c, int max) throws SQLException {
+		int woken = 0;
+
+		while (true) {
+			List<long[]> waiters = new ArrayList<long[]>();
+
+			PreparedStatement s1 = c.prepareStatement(waitersSql);
+			try {
+				int i = 1;
+				for (String name : lockNames)
+					s1.setString(i++, name);
+				s1.setInt(i, WAITERS_BATCH_SIZE);
+
+				ResultSet rs = s1.executeQuery();
+				while (rs.next())
+					waiters.add(new long[] {rs.getLong(1), rs.getLong(2)});
+
+			} finally {
+				s1.close();
+			}
+
+			if (waiters.isEmpty())
+				return woken;
+
+			for (long[] waiter : waiters) {
+				if (claimAndKill(c, waiter[0], waiter[1]) && ++woken >= max)
+					return woken;
+			}
+		}
+	}
+
+	/**
+	 * Claims a registered waiter by deleting its rows, and kills its connection before
+	 * the delete commits. The waiter's own unregister blocks on those rows until then,
+	 * so its connection can't go back to the pool, and on to other work, before the
+	 * KILL lands.
+	 *
+	 * @return false if someone else claimed it, it stopped waiting, or its connection has gone
+	 */
+	protected boolean claimAndKill(@Nonnull Connection c, long waiterId, long connectionId) throws SQLException {
+		boolean autoCommit = c.getAutoCommit();
+		c.setAutoCommit(false);
+		try {
+			PreparedStatement s = c.prepareStatement(unregisterQuery);
+			try {
+				s.setLong(1, waiterId);
+				if (s.executeUpdate() == 0) {
+					c.commit();
+					return false;
+				}
+
+			} finally {
+				s.close();
+			}
+
+			boolean killed = true;
+			try {
+				killThread(c, connectionId);
+			} catch (SQLException e) {
+				// The waiter's connection died without unregistering
+				if (e.getErrorCode() != ER_NO_SUCH_THREAD)
+					throw e;
+				killed = false;
+			}
+
+			c.commit();
+			return killed;
+
+		} catch (SQLException e) {
+			c.rollback();
+			throw e;
+
+		} finally {
+			c.setAutoCommit(autoCommit);
+		}
+	}
+
+	protected boolean sleep(@Nonnull Connection c, long nanosTimeout, long generation) throws SQLException {
+		// Convert to seconds, but round to whole number of milliseconds
+		float seconds = Math.round(nanosTimeout / 1000000.0) / 1000f;
+
+		PreparedStatement s;
+		if (generation < 0) {
+			s = c.prepareStatement(sleepQuery);
+			s.setFloat(1, seconds);
+			s.setString(2, lockName);
+
+		} else {
+			s = c.prepareStatement(conditionalSleepSql);
+			int i = 1;
+			for (String name : lockNames)
+				s.setString(i++, name);
+			s.setLong(i++, generation);
+			s.setFloat(i++, seconds);
+			s.setString(i, lockName);
+		}
+
+		try {
+			s.execute();
+
+			ResultSet rs = s.getResultSet();
+			if (rs != null && rs.next() && rs.getInt(1) == 1)
+				return true;
+
+			// Didn't sleep (or timed out), check if the generation had moved on
+			return generation >= 0 && getGeneration(c) != generation;
+
+		} catch (SQLException e) {
+			// Killed before the sleep started
+			if (e.getErrorCode() == ER_QUERY_INTERRUPTED)
+				return true;
+			throw e;
+
+		} finally {
+			s.close();
+		}
+	}
+
 	public long awaitNanos(long nanosTimeout) throws InterruptedException {
 		long now = System.nanoTime();
 		awaitNanosInternal(nanosTimeout);
@@ -121,12 +658,15 @@ public class MySQLSleepBasedCondition implements Condition {
 	}
 
 	public void await() throws InterruptedException {
-		while (!awaitNanosInternal(DEFAULT_WAIT)) {
+		// With generations, a signal between iterations moves the generation on, so isn't missed
+		long generation = useGenerations ? getGeneration() : -1;
+
+		while (!awaitNanosInternal(DEFAULT_WAIT, generation)) {
 			// Keep looping, until we expire before our timeout or are interuptted
 			if (Thread.interrupted())
 				throw new InterruptedException();
 
-			// TODO There is a race condition here. Between iterations we might miss a wakeup
+			// Without generations, there is a race condition here. Between iterations we might miss a wakeup
 		}
 	}
 
@@ -155,17 +695,215 @@ public class MySQLSleepBasedCondition implements Condition {
 	 * @throws SQLException
 	 */
 	protected ResultSet findLockThreads(@Nonnull Connection c) throws SQLException {
-		PreparedStatement s = null;
+		String listQuery = getListQuery(c);
+		PreparedStatement s = c.prepareStatement(listQuery);
 
-		if (useListQueryNew) {
-			s = c.prepareStatement(listQueryNew);
-			s.setString(1, "SELECT SLEEP(%" + lockName + "%");
-		} else {
-			s = c.prepareStatement(listQueryOld);
+		if (listQuery != listQueryOld) {
+			// Multiple names can't be matched by one LIKE, so leave them to the predicate
+			s.setString(1, "SELECT SLEEP(%" + (lockNames.size() == 1 ? lockName : "") + "%");
 		}
 		return new ResultSetFilter(s.executeQuery(), isOurLockPredicate);
 	}
 
+	/**
+	 * Finds up to max threads waiting, longest waiting first
+	 */
+	protected List<Long> findWaiters(@Nonnull Connection c, int max) throws SQLException {
+		if (useSnapshot)
+			return ProcesslistSnapshot.getInstance(ds).take(c, lockNames, max);
+
+		List<Long> ids = new ArrayList<Long>();
+		ResultSet threads = findLockThreads(c);
+		while (ids.size() < max && threads.next()) {
+			ids.add(threads.getLong(1));
+		}
+		threads.close();
+
+		return ids;
+	}
+
+	/**
+	 * Kills each thread, skipping any that have gone
+	 */
+	protected void killThreads(@Nonnull Connection c, @Nonnull List<Long> threadIds) throws SQLException {
+		for (Long id : threadIds) {
+			try {
+				killThread(c, id);
+
+			} catch (SQLException e) {
+				if (e.getErrorCode() != ER_NO_SUCH_THREAD)
+					throw e;
+
+				// Our view of the processlist is out of date
+				LOG.debug("Thread {} has gone", id);
+				if (useSnapshot)
+					ProcesslistSnapshot.getInstance(ds).invalidate();
+			}
+		}
+	}
+
+	protected String getListQuery(@Nonnull Connection c) throws SQLException {
+		return getListQuery(ds, c);
+	}
+
+	static String getListQuery(@Nonnull DataSource ds, @Nonnull Connection c) throws SQLException {
+		String listQuery = listQueries.get(ds);
+		if (listQuery == null) {
+			listQuery = detectListQuery(c);
+			listQueries.put(ds, listQuery);
+
+			LOG.debug("Using list query '{}'", listQuery);
+		}
+		return listQuery;
+	}
+
+	/**
+	 * Picks the cheapest way to find sleeping threads this server supports. Both
+	 * the performance_schema and INFORMATION_SCHEMA queries are filtered on the
+	 * server, instead of returning every thread.
+	 */
+	static String detectListQuery(@Nonnull Connection c) throws SQLException {
+		int version = parseVersion(c.getMetaData().getDatabaseProductVersion());
+
+		if (version >= 50600 && hasPerfSchema(c))
+			return listQueryPerfSchema;
+
+		if (version >= 50107)
+			return listQueryNew;
+
+		return listQueryOld;
+	}
+
+	/**
+	 * @param version Such as "5.6.15-log"
+	 * @return The version as a number, such as 50615, or 0 if unknown
+	 */
+	static int parseVersion(String version) {
+		if (version == null)
+			return 0;
+
+		Matcher m = versionPattern.matcher(version);
+		if (!m.find())
+			return 0;
+
+		return Integer.parseInt(m.group(1)) * 10000 + Integer.parseInt(m.group(2)) * 100 + Integer.parseInt(m.group(3));
+	}
+
+	static boolean hasPerfSchema(@Nonnull Connection c) {
+		try {
+			PreparedStatement s = c.prepareStatement(perfSchemaProbeQuery);
+			try {
+				ResultSet rs = s.executeQuery();
+				return rs.next() && rs.getInt(1) > 0;
+			} finally {
+				s.close();
+			}
+
+		} catch (SQLException e) {
+			// Most likely we don't have access to it
+			LOG.debug("performance_schema is not usable", e);
+			return false;
+		}
+	}
+
+	protected long getConnectionId(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(connectionIdQuery);
+		try {
+			ResultSet rs = s.executeQuery();
+			if (rs.next())
+				return rs.getLong(1);
+
+			throw new SQLException("Failed to retrieve connection id");
+
+		} finally {
+			s.close();
+		}
+	}
+
+	static Queue<Waiter> getLocalWaiters(@Nonnull DataSource ds, @Nonnull String lockName) {
+		List<Object> key = Arrays.<Object>asList(ds, lockName);
+		Queue<Waiter> waiters = localWaiters.get(key);
+		if (waiters == null) {
+			waiters = new ConcurrentLinkedQueue<Waiter>();
+			Queue<Waiter> existing = localWaiters.putIfAbsent(key, waiters);
+			if (existing != null)
+				waiters = existing;
+		}
+		return waiters;
+	}
+
+	/**
+	 * Wakes the longest waiting thread in this JVM, by killing its known connection.
+	 * <p/>
+	 * A KILL QUERY sent before the waiter's SLEEP() starts is lost. That is safe for a
+	 * sleep conditional on a generation this signal has already moved on, but any other
+	 * waiter is first looked up to confirm it is sleeping. That lookup is only cheap in
+	 * performance_schema, so elsewhere those waiters are left to the normal search.
+	 * <p/>
+	 * A waiter in the condition_waiter table is claimed, like {@link #signalTable(Connection, int)}
+	 * does, so its rows can't be picked by another signaller.
+	 *
+	 * @return true if a local thread was woken, false if there were none
+	 * @throws SQLException
+	 */
+	protected boolean signalLocal(@Nonnull Connection c) throws SQLException {
+		for (String name : lockNames) {
+			Queue<Waiter> waiters = localWaiters.get(Arrays.<Object>asList(ds, name));
+			if (waiters == null)
+				continue;
+
+			Iterator<Waiter> it = waiters.iterator();
+			while (it.hasNext()) {
+				Waiter waiter = it.next();
+				synchronized (waiter) {
+					if (waiter.state != Waiter.WAITING) {
+						it.remove();
+						continue;
+					}
+
+					if (!(waiter.conditional && useGenerations) && !isSleeping(c, waiter.connectionId))
+						continue;
+
+					it.remove();
+					if (waiter.waiterId != 0) {
+						if (!claimAndKill(c, waiter.waiterId, waiter.connectionId))
+							continue; // Already claimed by another signaller
+
+					} else {
+						killThread(c, waiter.connectionId);
+					}
+
+					waiter.state = Waiter.SIGNALLED;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Looks up one thread, to check it is sleeping on one of the lock names
+	 *
+	 * @return false if it is not, or if that can't be checked cheaply on this server
+	 * @throws SQLException
+	 */
+	protected boolean isSleeping(@Nonnull Connection c, long threadId) throws SQLException {
+		// INFORMATION_SCHEMA.PROCESSLIST lists every thread, even when asked for one
+		if (getListQuery(c) != listQueryPerfSchema)
+			return false;
+
+		PreparedStatement s = c.prepareStatement(String.format(threadsQueryPerfSchema, "?"));
+		try {
+			s.setLong(1, threadId);
+
+			ResultSet rs = s.executeQuery();
+			return rs.next() && ProcesslistSnapshot.isSleepingOn(rs.getString(2), rs.getString(3), lockNames);
+
+		} finally {
+			s.close();
+		}
+	}
+
 	protected void killThread(@Nonnull Connection c, long threadId) throws SQLException {
 		LOG.debug("Killing thread {}", threadId);
 
@@ -175,22 +913,84 @@ public class MySQLSleepBasedCondition implements Condition {
 	}
 
 	/**
-	 * Will signal the thread that's been waiting the longest
+	 * Will signal the thread that's been waiting the longest. Threads waiting in
+	 * this JVM are preferred, as they can usually be woken without a processlist scan.
+	 * See {@link #setSignalCoalescing(long, TimeUnit)} to merge signals.
 	 */
 	public void signal() {
+		if (coalesceNanos < 0) {
+			signal(1);
+			return;
+		}
+
+		pendingSignals.incrementAndGet();
+
+		// If another thread is already signalling, it will pick up ours
+		if (signalling.compareAndSet(false, true))
+			signalPending();
+	}
+
+	/**
+	 * Makes one scan for the pending signals. Must be called having set signalling,
+	 * which is cleared after. Signals that arrived during the scan are handed to a
+	 * background thread.
+	 */
+	protected void signalPending() {
+		try {
+			if (coalesceNanos > 0)
+				LockSupport.parkNanos(coalesceNanos);
+
+			int count = pendingSignals.getAndSet(0);
+			if (count > 0)
+				signal(count);
+
+		} finally {
+			signalling.set(false);
+
+			if (pendingSignals.get() > 0 && signalling.compareAndSet(false, true)) {
+				signaller.execute(new Runnable() {
+					public void run() {
+						try {
+							signalPending();
+						} catch (RuntimeException e) {
+							LOG.warn("Failed to signal '{}'", lockName, e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Wakes up to count threads, with at most one processlist scan
+	 *
+	 * @param count
+	 */
+	public void signal(int count) {
 		try {
 			Connection c = ds.getConnection();
 			try {
-				// Find a list of blocked threads to wake up
-				ResultSet threads = findLockThreads(c);
-				if (!threads.next()) {
-					LOG.debug("Nothing to wake up for '{}'", lockName);
+				if (useGenerations)
+					incrementGenerations(c);
+
+				while (count > 0 && signalLocal(c))
+					count--;
+
+				if (count == 0)
+					return;
+
+				if (useWaiterTable) {
+					if (signalTable(c, count) == 0)
+						LOG.debug("Nothing to wake up for '{}'", lockName);
 					return;
 				}
-				long toWake = threads.getLong(1);
-				threads.close();
 
-				killThread(c, toWake);
+				// Find a list of blocked threads to wake up
+				List<Long> toWake = findWaiters(c, count);
+				if (toWake.isEmpty())
+					LOG.debug("Nothing to wake up for '{}'", lockName);
+
+				killThreads(c, toWake);
 
 			} finally {
 				c.close();
@@ -205,18 +1005,17 @@ public class MySQLSleepBasedCondition implements Condition {
 		try {
 			Connection c = ds.getConnection();
 			try {
-				// Find a list of blocked threads to wake up
-				List<Long> toWake = new ArrayList<Long>();
-				ResultSet threads = findLockThreads(c);
-				while (threads.next()) {
-					toWake.add(threads.getLong(1));
-				}
-				threads.close();
+				if (useGenerations)
+					incrementGenerations(c);
 
-				for (Long id : toWake) {
-					killThread(c, id);
+				if (useWaiterTable) {
+					signalTable(c, Integer.MAX_VALUE);
+					return;
 				}
 
+				// Find a list of blocked threads to wake up
+				killThreads(c, findWaiters(c, Integer.MAX_VALUE));
+
 			} finally {
 				c.close();
 			}
@@ -0,0 +1,258 @@
+package net.bramp.db_patterns.locks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import net.bramp.sql.Placeholders;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cached list of the threads sleeping in {@link MySQLSleepBasedCondition}s, indexed
+ * by lock name, shared by every condition in the JVM using the same DataSource.
+ * The processlist is read at most once per TTL, however many conditions signal.
+ * <p/>
+ * A thread is taken out of the snapshot when it is signalled, so it is not signalled
+ * twice. Threads that start sleeping after the snapshot are not seen until the next
+ * refresh, so a short TTL should be used.
+ * <p/>
+ * A thread in the snapshot may have since woken, and its (pooled) connection moved on
+ * to other work, where a KILL QUERY would abort an unrelated statement. So the threads
+ * taken are first looked up, all in one query, to confirm they are still sleeping on
+ * one of the lock names. If any are not, the snapshot is refreshed. On servers without a processlist
+ * table (older than 5.1.7) the snapshot is refreshed on every take instead.
+ *
+ * @author bramp
+ */
+public class ProcesslistSnapshot {
+
+	final static Logger LOG = LoggerFactory.getLogger(ProcesslistSnapshot.class);
+
+	final static long DEFAULT_TTL = 100; // in ms
+
+	/**
+	 * Weak, so a DataSource that is no longer used can be collected. A snapshot
+	 * doesn't refer to its DataSource, or it would keep it alive.
+	 */
+	final static Map<DataSource, ProcesslistSnapshot> snapshots = new WeakHashMap<DataSource, ProcesslistSnapshot>();
+
+	volatile long ttl = DEFAULT_TTL;
+
+	// Guarded by this
+	String listQuery = null; // Detected on first use
+	Map<String, List<Long>> sleepers = Collections.emptyMap(); // Thread ids by lock name, longest waiting first
+	Set<Long> taken = new HashSet<Long>(); // Threads already signalled from this snapshot
+	long expires = 0; // in ms
+
+	public static synchronized ProcesslistSnapshot getInstance(@Nonnull DataSource ds) {
+		ProcesslistSnapshot snapshot = snapshots.get(ds);
+		if (snapshot == null) {
+			snapshot = new ProcesslistSnapshot();
+			snapshots.put(ds, snapshot);
+		}
+		return snapshot;
+	}
+
+	ProcesslistSnapshot() {}
+
+	/**
+	 * How long a snapshot is used for
+	 *
+	 * @param ttl
+	 * @param unit
+	 */
+	public void setTtl(long ttl, TimeUnit unit) {
+		this.ttl = unit.toMillis(ttl);
+	}
+
+	/**
+	 * Forces the next {@link #take} to read the processlist again
+	 */
+	public synchronized void invalidate() {
+		expires = 0;
+	}
+
+	/**
+	 * Takes up to max threads sleeping on any of the lock names, longest waiting first
+	 *
+	 * @param c         Used if the snapshot needs refreshing
+	 * @param lockNames
+	 * @param max
+	 * @return The thread ids
+	 * @throws SQLException
+	 */
+	public synchronized List<Long> take(@Nonnull Connection c, @Nonnull Collection<String> lockNames, int max) throws SQLException {
+		String listQuery = getListQuery(c);
+		if (listQuery == MySQLSleepBasedCondition.listQueryOld) {
+			// No cheap way to confirm a single thread, so always use a fresh list
+			refresh(c);
+			return pick(lockNames, max);
+		}
+
+		if (System.currentTimeMillis() >= expires)
+			refresh(c);
+
+		List<Long> ids = pick(lockNames, max);
+		List<Long> confirmed = confirm(c, listQuery, ids, lockNames);
+
+		if (confirmed.size() < ids.size()) {
+			// The snapshot is out of date, so read it again for the rest
+			LOG.debug("{} threads in the snapshot are no longer sleeping", ids.size() - confirmed.size());
+			refresh(c);
+			taken.addAll(confirmed);
+			confirmed.addAll(confirm(c, listQuery, pick(lockNames, max - confirmed.size()), lockNames));
+		}
+
+		return confirmed;
+	}
+
+	/**
+	 * Takes up to max threads from the snapshot, without checking they still sleep
+	 */
+	protected List<Long> pick(@Nonnull Collection<String> lockNames, int max) {
+		List<Long> ids = new ArrayList<Long>();
+		for (String name : lockNames) {
+			List<Long> threads = sleepers.get(name);
+			if (threads == null)
+				continue;
+
+			for (Long id : threads) {
+				if (ids.size() >= max)
+					return ids;
+
+				if (taken.add(id))
+					ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @return The threads that are still sleeping on one of the lock names
+	 */
+	protected List<Long> confirm(@Nonnull Connection c, @Nonnull String listQuery, @Nonnull List<Long> ids,
+	                             @Nonnull Collection<String> lockNames) throws SQLException {
+		List<Long> confirmed = new ArrayList<Long>();
+		if (ids.isEmpty())
+			return confirmed;
+
+		String threadsQuery = listQuery == MySQLSleepBasedCondition.listQueryPerfSchema ?
+				MySQLSleepBasedCondition.threadsQueryPerfSchema : MySQLSleepBasedCondition.threadsQueryNew;
+
+		Set<Long> sleeping = new HashSet<Long>();
+		PreparedStatement s = c.prepareStatement(String.format(threadsQuery, Placeholders.repeat(ids.size(), "?", ", ")));
+		try {
+			int i = 1;
+			for (Long id : ids)
+				s.setLong(i++, id);
+
+			ResultSet rs = s.executeQuery();
+			while (rs.next()) {
+				if (isSleepingOn(rs.getString(2), rs.getString(3), lockNames))
+					sleeping.add(rs.getLong(1));
+			}
+
+		} finally {
+			s.close();
+		}
+
+		// Keep the snapshot's order, longest waiting first
+		for (Long id : ids) {
+			if (sleeping.contains(id))
+				confirmed.add(id);
+		}
+		return confirmed;
+	}
+
+	static boolean isSleepingOn(String state, String info, @Nonnull Collection<String> lockNames) {
+		if (info == null || (state != null && !state.equals("User sleep")))
+			return false;
+
+		Matcher m = MySQLSleepBasedCondition.sleepPattern.matcher(info);
+		if (!m.matches())
+			return false;
+
+		for (String name : m.group(2).split(MySQLSleepBasedCondition.LOCK_NAME_SEPARATOR)) {
+			if (lockNames.contains(name))
+				return true;
+		}
+		return false;
+	}
+
+	protected synchronized String getListQuery(@Nonnull Connection c) throws SQLException {
+		if (listQuery == null)
+			listQuery = MySQLSleepBasedCondition.detectListQuery(c);
+		return listQuery;
+	}
+
+	protected void refresh(@Nonnull Connection c) throws SQLException {
+		final Map<Long, Long> times = new HashMap<Long, Long>();
+		Map<String, List<Long>> sleepers = new HashMap<String, List<Long>>();
+
+		String listQuery = getListQuery(c);
+		PreparedStatement s = c.prepareStatement(listQuery);
+		try {
+			if (listQuery != MySQLSleepBasedCondition.listQueryOld)
+				s.setString(1, "SELECT SLEEP(%");
+
+			ResultSet rs = s.executeQuery();
+			while (rs.next()) {
+				String state = rs.getString(7);
+				String info = rs.getString(8);
+				if (info == null || (state != null && !state.equals("User sleep")))
+					continue;
+
+				Matcher m = MySQLSleepBasedCondition.sleepPattern.matcher(info);
+				if (!m.matches())
+					continue;
+
+				long id = rs.getLong(1);
+				times.put(id, rs.getLong(6));
+
+				for (String name : m.group(2).split(MySQLSleepBasedCondition.LOCK_NAME_SEPARATOR)) {
+					List<Long> threads = sleepers.get(name);
+					if (threads == null) {
+						threads = new ArrayList<Long>();
+						sleepers.put(name, threads);
+					}
+					threads.add(id);
+				}
+			}
+
+		} finally {
+			s.close();
+		}
+
+		Comparator<Long> longestWaitingFirst = new Comparator<Long>() {
+			public int compare(Long a, Long b) {
+				return times.get(b).compareTo(times.get(a));
+			}
+		};
+		for (List<Long> threads : sleepers.values())
+			Collections.sort(threads, longestWaitingFirst);
+
+		LOG.debug("Refreshed processlist snapshot, {} threads sleeping", times.size());
+
+		this.sleepers = sleepers;
+		this.taken = new HashSet<Long>();
+		this.expires = System.currentTimeMillis() + ttl;
+	}
+}
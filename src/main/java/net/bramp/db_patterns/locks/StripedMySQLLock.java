@@ -0,0 +1,176 @@
+package net.bramp.db_patterns.locks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+/**
+ * Mutual exclusion on a large number of keys, using a fixed number of
+ * {@link MySQLNamedLock}s. Each key is hashed onto one of the stripes, so two keys
+ * may share a lock, but the number of named locks, and connections held, is bounded
+ * by the number of stripes.
+ * <p/>
+ * Keys must have a hashCode that is the same in every process (such as Strings,
+ * Longs, or UUIDs), and every process must use the same name and number of stripes.
+ * <p/>
+ * Several keys can be locked at once with {@link #lockAll(Iterable)}, which takes the
+ * stripes in ascending order, so two processes locking overlapping keys can't deadlock.
+ * Every stripe held keeps its own connection, so locking keys on k stripes holds k
+ * connections from the pool. Size the pool for the most stripes locked at once, or
+ * limit the keys locked together, else callers can starve each other of connections.
+ *
+ * @author bramp
+ */
+public class StripedMySQLLock {
+
+	final String name;
+	final MySQLNamedLock[] stripes;
+
+	/**
+	 * @param ds
+	 * @param name    Prefix of the named locks
+	 * @param stripes Number of named locks
+	 */
+	public StripedMySQLLock(@Nonnull DataSource ds, @Nonnull String name, int stripes) {
+		if (stripes <= 0)
+			throw new IllegalArgumentException("stripes must be positive");
+
+		this.name = name;
+		this.stripes = new MySQLNamedLock[stripes];
+		for (int i = 0; i < stripes; i++)
+			this.stripes[i] = new MySQLNamedLock(ds, name + "-" + i);
+	}
+
+	public int size() {
+		return stripes.length;
+	}
+
+	/**
+	 * Spreads the hash, so keys with similar hashCodes land on different stripes
+	 *
+	 * @param key
+	 * @return The stripe index
+	 */
+	public int indexFor(@Nonnull Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * @param key
+	 * @return The lock for the stripe the key is on
+	 */
+	public MySQLNamedLock get(@Nonnull Object key) {
+		return stripes[indexFor(key)];
+	}
+
+	public MySQLNamedLock getAt(int index) {
+		return stripes[index];
+	}
+
+	/**
+	 * @param keys
+	 * @return The distinct locks for the keys, in the order they should be taken
+	 */
+	public List<MySQLNamedLock> bulkGet(@Nonnull Iterable<?> keys) {
+		SortedSet<Integer> indexes = new TreeSet<Integer>();
+		for (Object key : keys)
+			indexes.add(indexFor(key));
+
+		List<MySQLNamedLock> locks = new ArrayList<MySQLNamedLock>(indexes.size());
+		for (int index : indexes)
+			locks.add(stripes[index]);
+		return locks;
+	}
+
+	/**
+	 * Locks every stripe the keys are on, in ascending order. Holds one connection per
+	 * stripe until {@link #unlockAll(List)}, blocking if the pool runs out.
+	 *
+	 * @param keys
+	 * @return The locks taken, to pass to {@link #unlockAll(List)}
+	 */
+	public List<MySQLNamedLock> lockAll(@Nonnull Iterable<?> keys) {
+		List<MySQLNamedLock> locks = bulkGet(keys);
+		List<MySQLNamedLock> locked = new ArrayList<MySQLNamedLock>(locks.size());
+
+		boolean success = false;
+		try {
+			for (MySQLNamedLock lock : locks) {
+				lock.lock();
+				locked.add(lock);
+			}
+			success = true;
+
+		} finally {
+			if (!success)
+				unlockAll(locked);
+		}
+
+		return locked;
+	}
+
+	/**
+	 * Locks every stripe the keys are on, in ascending order, giving up after the timeout.
+	 * Like {@link #lockAll(Iterable)}, holds one connection per stripe.
+	 *
+	 * @param keys
+	 * @param time
+	 * @param unit
+	 * @return The locks taken, or null if timeout (and no locks are held)
+	 * @throws InterruptedException
+	 */
+	public List<MySQLNamedLock> tryLockAll(@Nonnull Iterable<?> keys, long time, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(time);
+
+		List<MySQLNamedLock> locks = bulkGet(keys);
+		List<MySQLNamedLock> locked = new ArrayList<MySQLNamedLock>(locks.size());
+
+		boolean success = false;
+		try {
+			for (MySQLNamedLock lock : locks) {
+				if (!lock.tryLock(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS))
+					return null;
+				locked.add(lock);
+			}
+			success = true;
+
+		} finally {
+			if (!success)
+				unlockAll(locked);
+		}
+
+		return locked;
+	}
+
+	/**
+	 * Unlocks the locks, in reverse order
+	 *
+	 * @param locks As returned by {@link #lockAll(Iterable)}
+	 */
+	public void unlockAll(@Nonnull List<MySQLNamedLock> locks) {
+		List<MySQLNamedLock> reversed = new ArrayList<MySQLNamedLock>(locks);
+		Collections.reverse(reversed);
+
+		RuntimeException failure = null;
+		for (MySQLNamedLock lock : reversed) {
+			try {
+				lock.unlock();
+			} catch (RuntimeException e) {
+				// Keep going, so the other stripes are released
+				failure = e;
+			}
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+}
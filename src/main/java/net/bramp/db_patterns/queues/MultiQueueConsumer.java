@@ -0,0 +1,351 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
+import net.bramp.sql.Placeholders;
+import net.bramp.sql.RetryPolicy;
+import net.bramp.sql.SQLCallable;
+
+/**
+ * Consumes from several MySQLBasedQueues at once, using one claim query and one
+ * condition, instead of a poll loop and sleeping connection per queue.
+ * <p/>
+ * Each queue has a weight. When several queues have items, the next item comes
+ * from a queue picked at random in proportion to its weight, so a busy queue
+ * can not starve the others.
+ * <p/>
+ * For the claim to stay cheap, the queue table needs its (queue_name, acquired, id)
+ * key, see {@link MySQLBasedQueue}.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MultiQueueConsumer<E> {
+
+	final static Logger LOG = LoggerFactory.getLogger(MultiQueueConsumer.class);
+
+	/**
+	 * Claims the head of the first queue (in the given order) that has a item.
+	 * Only the head of each queue is considered, so the ORDER BY sorts at most
+	 * one row per queue.
+	 */
+	final static String claimQuery =
+			"UPDATE queue SET " +
+					"   id = (SELECT @update_id := id), " +
+					"   acquired = NOW(), " +
+					"   acquired_by = ? " +
+					"WHERE acquired IS NULL AND id IN (" +
+					"   SELECT id FROM (%s) heads" +
+					") " +
+					"ORDER BY FIELD(queue_name, %s) " +
+					"LIMIT 1";
+
+	final static String headQuery = "(SELECT id FROM queue WHERE acquired IS NULL AND queue_name = ? ORDER BY id ASC LIMIT 1)";
+
+	/**
+	 * Used if all the heads were taken by other consumers, between us finding and claiming them
+	 */
+	final static String fallbackQuery =
+			"UPDATE queue SET " +
+					"   id = (SELECT @update_id := id), " +
+					"   acquired = NOW(), " +
+					"   acquired_by = ? " +
+					"WHERE acquired IS NULL AND queue_name IN (%s) " +
+					"ORDER BY id ASC " +
+					"LIMIT 1";
+
+	final static String resetQuery = "SET @update_id := -1; ";
+	final static String valueQuery = "SELECT queue_name, value FROM queue WHERE id = @update_id";
+
+	/**
+	 * A item, and the queue it came from
+	 */
+	public static class Item<E> {
+		final String queueName;
+		final E value;
+
+		Item(String queueName, E value) {
+			this.queueName = queueName;
+			this.value = value;
+		}
+
+		public String getQueueName() {
+			return queueName;
+		}
+
+		public E getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return queueName + ": " + value;
+		}
+	}
+
+	final Random random = new Random();
+
+	final DataSource ds;
+	final String me;
+	final Class<E> type;
+
+	final String[] queueNames;
+	final int[] weights;
+
+	final String claimSql;
+	final String fallbackSql;
+
+	final Condition condition;
+
+	volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+	/**
+	 * @param ds
+	 * @param weights   Queue names, and their relative weight
+	 * @param type
+	 * @param me        The name of this node, for storing in the database table
+	 */
+	public MultiQueueConsumer(@Nonnull DataSource ds, @Nonnull Map<String, Integer> weights, Class<E> type, String me) {
+		if (weights.isEmpty())
+			throw new IllegalArgumentException("At least one queue is required");
+
+		this.ds = ds;
+		this.type = type;
+		this.me = me;
+
+		// Take a copy, so the order is fixed
+		Map<String, Integer> copy = new LinkedHashMap<String, Integer>(weights);
+		this.queueNames = new String[copy.size()];
+		this.weights = new int[copy.size()];
+
+		List<String> conditionNames = new ArrayList<String>();
+
+		int i = 0;
+		for (Map.Entry<String, Integer> entry : copy.entrySet()) {
+			if (entry.getValue() <= 0)
+				throw new IllegalArgumentException("Weight for '" + entry.getKey() + "' must be positive");
+
+			queueNames[i] = entry.getKey();
+			this.weights[i] = entry.getValue();
+			conditionNames.add(MySQLBasedQueue.conditionName(entry.getKey()));
+			i++;
+		}
+
+		String placeholders = Placeholders.repeat(queueNames.length, "?", ", ");
+		this.claimSql = String.format(claimQuery, Placeholders.repeat(queueNames.length, headQuery, " UNION ALL "), placeholders);
+		this.fallbackSql = String.format(fallbackQuery, placeholders);
+
+		this.condition = new MySQLSleepBasedCondition(ds, conditionNames);
+	}
+
+	/**
+	 * Sets how deadlocks and lock wait timeouts are retried
+	 *
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(@Nonnull RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Runs the work, retrying deadlocks and lock wait timeouts
+	 */
+	protected <V> V execute(SQLCallable<V> callable) {
+		try {
+			return retryPolicy.execute(callable);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Orders the queues at random, so that a queue is more likely to be
+	 * earlier the larger its weight. This uses the exponential sort trick,
+	 * where each queue gets a key of -ln(U) / weight.
+	 */
+	protected String[] weightedOrder() {
+		final double[] keys = new double[queueNames.length];
+		Integer[] order = new Integer[queueNames.length];
+
+		for (int i = 0; i < queueNames.length; i++) {
+			keys[i] = -Math.log(1.0 - random.nextDouble()) / weights[i];
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(keys[a], keys[b]);
+			}
+		});
+
+		String[] names = new String[queueNames.length];
+		for (int i = 0; i < order.length; i++) {
+			names[i] = queueNames[order[i]];
+		}
+		return names;
+	}
+
+	/**
+	 * No blocking
+	 *
+	 * @return The next item from any of the queues, or null if they are all empty
+	 */
+	public Item<E> poll() {
+		return execute(new SQLCallable<Item<E>>() {
+			public Item<E> call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					c.setAutoCommit(false);
+
+					Item<E> item = poll(c);
+					c.commit();
+					return item;
+
+				} catch (SQLException e) {
+					c.rollback();
+					throw e;
+
+				} finally {
+					c.setAutoCommit(true);
+					c.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Claims the next item as part of the caller's transaction. No blocking.
+	 *
+	 * @param c
+	 * @return The next item from any of the queues, or null if they are all empty
+	 * @throws SQLException
+	 */
+	public Item<E> poll(@Nonnull Connection c) throws SQLException {
+		CallableStatement s1 = c.prepareCall(resetQuery);
+		try {
+			s1.execute();
+		} finally {
+			s1.close();
+		}
+
+		if (!claim(c)) {
+			return null;
+		}
+
+		CallableStatement s3 = c.prepareCall(valueQuery);
+		try {
+			ResultSet rs = s3.executeQuery();
+			if (rs.next())
+				return new Item<E>(rs.getString(1), rs.getObject(2, type));
+
+			return null;
+
+		} finally {
+			s3.close();
+		}
+	}
+
+	protected boolean claim(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s = c.prepareStatement(claimSql);
+		try {
+			int i = 1;
+			s.setString(i++, me); // Acquired by me
+			for (String name : queueNames)
+				s.setString(i++, name);
+			for (String name : weightedOrder())
+				s.setString(i++, name);
+
+			if (s.executeUpdate() > 0)
+				return true;
+
+		} finally {
+			s.close();
+		}
+
+		s = c.prepareStatement(fallbackSql);
+		try {
+			int i = 1;
+			s.setString(i++, me); // Acquired by me
+			for (String name : queueNames)
+				s.setString(i++, name);
+
+			return s.executeUpdate() > 0;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Blocks until something is in any of the queues, up to timeout
+	 * null if timeout occurs
+	 */
+	public Item<E> poll(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+		final Date deadline = new Date(deadlineMillis);
+
+		Item<E> head = null;
+		boolean stillWaiting = true;
+
+		while (stillWaiting) {
+			// Check if we can grab one
+			head = poll();
+			if (head != null)
+				break;
+
+			// Block until we are woken (by a add to any queue), or deadline
+			stillWaiting = condition.awaitUntil(deadline);
+		}
+
+		return head;
+	}
+
+	/**
+	 * Blocks until a item is available
+	 */
+	public Item<E> take() throws InterruptedException {
+		// We loop around trying to get a item, blocking at most a minute at
+		// a time this allows us to be interrupted
+		Item<E> head = null;
+		while (head == null) {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			head = poll(1, TimeUnit.MINUTES);
+		}
+		return head;
+	}
+
+	/**
+	 * @return The names of the queues consumed from
+	 */
+	public List<String> getQueueNames() {
+		return Collections.unmodifiableList(Arrays.asList(queueNames));
+	}
+}
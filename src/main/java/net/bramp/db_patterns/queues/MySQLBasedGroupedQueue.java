@@ -0,0 +1,303 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queue backed by MySQL, where items in the same group are handed out in order,
+ * one at a time, but items in different groups can be processed in parallel.
+ * <p/>
+ * Once a grouped item is taken, no other item from that group is returned until
+ * {@link #complete(String)} is called for the group. Items added without a group
+ * are never held back.
+ * <p/>
+ * A group is held by the consumer that took its item. If that consumer dies without
+ * completing it, the group is freed once its timeout passes (see
+ * {@link #setGroupTimeout(long, TimeUnit)}), and its next item can be taken. The item
+ * that was in flight is not handed out again.
+ * <p/>
+ * Uses the same queue table as {@link MySQLBasedQueue}, plus:
+ * <p/>
+ * ALTER TABLE queue
+ *     ADD group_key VARCHAR(255) NULL;  -- Items with the same key are processed in order
+ * <p/>
+ * CREATE TABLE queue_group (
+ *     queue_name  VARCHAR(255) NOT NULL,
+ *     group_key   VARCHAR(255) NOT NULL,    -- Group that has an item in flight
+ *     acquired_id INT UNSIGNED NOT NULL,    -- and which item
+ *     acquired_by VARCHAR(255) NOT NULL,    -- by who
+ *     expires     TIMESTAMP NOT NULL,       -- Freed if not completed by then
+ *     PRIMARY KEY (queue_name, group_key)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MySQLBasedGroupedQueue<E> extends MySQLBasedQueue<E> {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLBasedGroupedQueue.class);
+
+	final static String addToGroupQuery = "INSERT INTO queue (queue_name, group_key, inserted, inserted_by, value) values (?, ?, now(), ?, ?)";
+
+	final static long DEFAULT_GROUP_TIMEOUT = 3600; // in seconds
+
+	/**
+	 * Finds the oldest item (after a id) whose group has nothing in flight, or has expired.
+	 * The anti-join is a primary key lookup on queue_group, so busy groups are skipped cheaply.
+	 */
+	final static String candidateQuery =
+			"SELECT q.id, q.group_key, q.value FROM queue q " +
+					"LEFT JOIN queue_group g ON g.queue_name = q.queue_name AND g.group_key = q.group_key AND g.expires > NOW() " +
+					"WHERE q.acquired IS NULL AND q.queue_name = ? AND q.id > ? AND g.group_key IS NULL " +
+					"ORDER BY q.id ASC " +
+					"LIMIT 1";
+
+	/**
+	 * Like {@link MySQLBasedQueue#transferCopyQuery}, but the items keep their groups
+	 */
+	final static String transferCopyGroupQuery =
+			"INSERT INTO queue (queue_name, group_key, inserted, inserted_by, value) " +
+					"SELECT ?, group_key, NOW(), ?, value FROM queue WHERE id IN (%s) ORDER BY id ASC";
+
+	final static String expireGroupQuery = "DELETE FROM queue_group WHERE queue_name = ? AND group_key = ? AND expires <= NOW()";
+	final static String lockGroupQuery   =
+			"INSERT IGNORE INTO queue_group (queue_name, group_key, acquired_id, acquired_by, expires) " +
+					"VALUES (?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
+	final static String claimQuery       = "UPDATE queue SET acquired = NOW(), acquired_by = ? WHERE id = ? AND acquired IS NULL";
+	final static String completeQuery    = "DELETE FROM queue_group WHERE queue_name = ? AND group_key = ? AND acquired_by = ?";
+
+	volatile long groupTimeout = DEFAULT_GROUP_TIMEOUT;
+
+	public MySQLBasedGroupedQueue(DataSource ds, String queueName, Class<E> type, String me) {
+		super(ds, queueName, type, me);
+	}
+
+	/**
+	 * How long a group is held after its item is taken, before it is assumed the
+	 * consumer died, and the group's next item can be taken. Defaults to an hour.
+	 *
+	 * @param timeout Rounded up to whole seconds
+	 * @param unit
+	 */
+	public void setGroupTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("timeout must be positive");
+
+		this.groupTimeout = (unit.toMillis(timeout) + 999) / 1000;
+	}
+
+	/**
+	 * Adds a value to the end of the group
+	 *
+	 * @param groupKey Values with the same key are taken in order, one at a time
+	 * @param value
+	 * @return true
+	 */
+	public boolean addToGroup(@Nonnull String groupKey, E value) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(addToGroupQuery);
+				try {
+					s.setString(1, queueName);
+					s.setString(2, groupKey);
+					s.setObject(3, me); // Inserted by me
+					s.setObject(4, value);
+					s.execute();
+
+					// Wake up one
+					condition.signal();
+
+					return true;
+
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Marks the group's in flight item as finished, allowing its next item to be taken.
+	 * Does nothing if the group expired and was taken by someone else.
+	 *
+	 * @param groupKey
+	 */
+	public void complete(@Nonnull String groupKey) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(completeQuery);
+				try {
+					s.setString(1, queueName);
+					s.setString(2, groupKey);
+					s.setString(3, me);
+					if (s.executeUpdate() == 0) {
+						LOG.warn("Group '{}' had nothing in flight for us", groupKey);
+						return;
+					}
+
+					// The group's next item may now be available
+					condition.signal();
+
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Transferred items keep their group key, so they stay in order in the target queue
+	 */
+	@Override
+	protected String getTransferCopyQuery() {
+		return transferCopyGroupQuery;
+	}
+
+	/**
+	 * No blocking
+	 */
+	@Override
+	public E peek() {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s = c.prepareStatement(candidateQuery);
+				try {
+					s.setString(1, queueName);
+					s.setLong(2, 0);
+					ResultSet rs = s.executeQuery();
+					if (rs.next())
+						return rs.getObject(3, type);
+
+					return null;
+
+				} finally {
+					s.close();
+				}
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Claims the oldest item whose group has nothing in flight, as part of the
+	 * caller's transaction. No blocking.
+	 */
+	@Override
+	public E poll(@Nonnull Connection c) throws SQLException {
+		if (c.getAutoCommit()) {
+			// Savepoints need a transaction
+			c.setAutoCommit(false);
+			try {
+				E head = poll(c);
+				c.commit();
+				return head;
+			} finally {
+				c.setAutoCommit(true);
+			}
+		}
+
+		// We only loop if another consumer beat us to the same item or group. As
+		// the caller's transaction may have an old snapshot, we move past each
+		// item we fail on, instead of retrying it.
+		long afterId = 0;
+		while (true) {
+			String groupKey;
+			E value;
+
+			PreparedStatement s = c.prepareStatement(candidateQuery);
+			try {
+				s.setString(1, queueName);
+				s.setLong(2, afterId);
+				ResultSet rs = s.executeQuery();
+				if (!rs.next())
+					return null;
+
+				afterId = rs.getLong(1);
+				groupKey = rs.getString(2);
+				value = rs.getObject(3, type);
+
+			} finally {
+				s.close();
+			}
+
+			Savepoint savepoint = c.setSavepoint();
+			if ((groupKey == null || lockGroup(c, groupKey, afterId)) && claim(c, afterId)) {
+				c.releaseSavepoint(savepoint);
+				return value;
+			}
+
+			c.rollback(savepoint);
+		}
+	}
+
+	/**
+	 * Marks the group as busy, first freeing it if it has expired. Blocks if another
+	 * consumer is mid way through claiming the same group.
+	 *
+	 * @return false if the group already has an item in flight
+	 */
+	protected boolean lockGroup(@Nonnull Connection c, @Nonnull String groupKey, long id) throws SQLException {
+		PreparedStatement s1 = c.prepareStatement(expireGroupQuery);
+		try {
+			s1.setString(1, queueName);
+			s1.setString(2, groupKey);
+			if (s1.executeUpdate() > 0)
+				LOG.warn("Group '{}' expired before it was completed", groupKey);
+		} finally {
+			s1.close();
+		}
+
+		PreparedStatement s2 = c.prepareStatement(lockGroupQuery);
+		try {
+			s2.setString(1, queueName);
+			s2.setString(2, groupKey);
+			s2.setLong(3, id);
+			s2.setString(4, me); // Acquired by me
+			s2.setLong(5, groupTimeout);
+			return s2.executeUpdate() == 1;
+		} finally {
+			s2.close();
+		}
+	}
+
+	/**
+	 * @return false if the item was already taken
+	 */
+	protected boolean claim(@Nonnull Connection c, long id) throws SQLException {
+		PreparedStatement s = c.prepareStatement(claimQuery);
+		try {
+			s.setString(1, me); // Acquired by me
+			s.setLong(2, id);
+			return s.executeUpdate() == 1;
+		} finally {
+			s.close();
+		}
+	}
+}
@@ -5,15 +5,27 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 
+import javax.annotation.Nonnull;
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.bramp.concurrent.RecentSet;
+import net.bramp.sql.Placeholders;
+import net.bramp.sql.RetryPolicy;
+import net.bramp.sql.SQLCallable;
 import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
 
 /**
@@ -27,7 +39,14 @@ import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
  *     acquired    TIMESTAMP NULL,          -- Time the row was acquired
  *     acquired_by VARCHAR(255) NULL,        -- and by who
  *     value       BLOB NOT NULL,           -- The actual data
- *     PRIMARY KEY (id)
+ *     dedup_key   VARCHAR(255) NULL,        -- Optional key, to ignore duplicate adds
+ *     lease_token   BIGINT UNSIGNED NULL,   -- Identifies the lease holding this row
+ *     lease_expires TIMESTAMP NULL,         -- Requeued if not acked by then
+ *     PRIMARY KEY (id),
+ *     UNIQUE KEY (queue_name, dedup_key),
+ *     KEY (queue_name, acquired, id),      -- Finds the head, without scanning taken rows
+ *     KEY (lease_token),
+ *     KEY (queue_name, lease_expires)
  * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
  * <p/>
  * TODO Create efficient drainTo
@@ -40,6 +59,8 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 	final static Logger LOG = LoggerFactory.getLogger(MySQLBasedQueue.class);
 
 	final static String addQuery  = "INSERT INTO queue (queue_name, inserted, inserted_by, value) values (?, now(), ?, ?)";
+	// INSERT IGNORE reports 0 rows for a duplicate, even with CLIENT_FOUND_ROWS (Connector/J's default)
+	final static String addUniqueQuery = "INSERT IGNORE INTO queue (queue_name, dedup_key, inserted, inserted_by, value) values (?, ?, now(), ?, ?)";
 	final static String peekQuery = "SELECT value FROM queue WHERE acquired IS NULL AND queue_name = ?  ORDER BY id ASC LIMIT 1";
 	final static String sizeQuery = "SELECT COUNT(*) FROM queue WHERE acquired IS NULL AND queue_name = ?";
 
@@ -60,15 +81,75 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 			"SELECT value FROM queue WHERE id = @update_id"
 	};
 
+	/**
+	 * Used to claim a random item near the head, instead of always the head
+	 */
+	final static String candidatesQuery = "SELECT id FROM queue WHERE acquired IS NULL AND queue_name = ? ORDER BY id ASC LIMIT ?";
+	final static String claimByIdQuery  = "UPDATE queue SET acquired = NOW(), acquired_by = ? WHERE id = ? AND acquired IS NULL";
+	final static String valueByIdQuery  = "SELECT value FROM queue WHERE id = ?";
+
+	/**
+	 * How many random candidates to try, before falling back to the head
+	 */
+	final static int MAX_SPREAD_ATTEMPTS = 3;
+
+	/**
+	 * Marks a chunk of items as acquired, without reading their values. With the
+	 * (queue_name, acquired, id) key each chunk only reads the rows it updates.
+	 */
+	final static String clearQuery =
+			"UPDATE queue SET acquired = NOW(), acquired_by = ? " +
+					"WHERE acquired IS NULL AND queue_name = ? " +
+					"ORDER BY id ASC " +
+					"LIMIT ?";
+
+	final static int CLEAR_BATCH_SIZE = 1000;
+
+	/**
+	 * Used to move items to another queue, without the values leaving the database
+	 */
+	final static String transferLockQuery = "SELECT id FROM queue WHERE acquired IS NULL AND queue_name = ? ORDER BY id ASC LIMIT ? FOR UPDATE";
+	final static String transferCopyQuery =
+			"INSERT INTO queue (queue_name, inserted, inserted_by, value) " +
+					"SELECT ?, NOW(), ?, value FROM queue WHERE id IN (%s) ORDER BY id ASC";
+	final static String transferClaimQuery = "UPDATE queue SET acquired = NOW(), acquired_by = ? WHERE id IN (%s)";
+
+	/**
+	 * Claims up to n rows, under a lease that expires unless acked
+	 */
+	final static String leaseQuery =
+			"UPDATE queue SET " +
+					"   acquired = NOW(), " +
+					"   acquired_by = ?, " +
+					"   lease_token = ?, " +
+					"   lease_expires = DATE_ADD(NOW(), INTERVAL ? SECOND) " +
+					"WHERE acquired IS NULL AND queue_name = ? " +
+					"ORDER BY id ASC " +
+					"LIMIT ?";
+
+	final static String leasedQuery = "SELECT id, value FROM queue WHERE lease_token = ? ORDER BY id ASC";
+
+	final static String ackQuery = "UPDATE queue SET lease_expires = NULL WHERE lease_token = ? AND lease_expires IS NOT NULL";
+	final static String ackRangeQuery = ackQuery + " AND id BETWEEN ? AND ?";
+
+	/**
+	 * Returns rows with expired leases to the queue
+	 */
+	final static String requeueQuery =
+			"UPDATE queue SET acquired = NULL, acquired_by = NULL, lease_token = NULL, lease_expires = NULL " +
+					"WHERE queue_name = ? AND lease_expires < NOW()";
+
 	final static String cleanupQuery =
 			"DELETE FROM queue " +
 					"WHERE acquired IS NOT NULL " +
+					"   AND lease_expires IS NULL " +
 					"   AND queue_name = ? " +
 					"   AND acquired < DATE_SUB(NOW(), INTERVAL 10 DAY)";
 
 	final static String cleanupAllQuery =
 			"DELETE FROM queue " +
 					"WHERE acquired IS NOT NULL " +
+					"   AND lease_expires IS NULL " +
 					"   AND acquired < DATE_SUB(NOW(), INTERVAL 10 DAY)";
 
 	final String me;
@@ -79,6 +160,27 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 
 	final Condition condition;
 
+	/**
+	 * Keys recently added by this instance, or null if disabled
+	 */
+	volatile RecentSet<String> recentKeys = null;
+
+	/**
+	 * Number of adds made on each caller's connection, that will signal once committed.
+	 * An entry is only removed by {@link #commit(Connection)} or {@link #rollback(Connection)}.
+	 * Guarded by itself.
+	 */
+	final Map<Connection, Integer> pendingSignals = new IdentityHashMap<Connection, Integer>();
+
+	/**
+	 * Number of items at the head to pick from at random, or 1 to always take the head
+	 */
+	volatile int claimSpread = 1;
+
+	final Random random = new Random();
+
+	volatile RetryPolicy retryPolicy = new RetryPolicy();
+
 	/**
 	 * Creates a new MySQL backed queue
 	 *
@@ -88,39 +190,276 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 	 * @param me        The name of this node, for storing in the database table
 	 */
 	public MySQLBasedQueue(DataSource ds, String queueName, Class<E> type, String me) {
+		this(ds, queueName, type, me, new MySQLSleepBasedCondition(ds, conditionName(queueName)));
+	}
+
+	/**
+	 * Creates a new MySQL backed queue, woken by the given condition
+	 *
+	 * @param ds
+	 * @param queueName
+	 * @param type
+	 * @param me        The name of this node, for storing in the database table
+	 * @param condition Signalled when items are added, for example from a {@link MySQLQueueWatcher}
+	 */
+	public MySQLBasedQueue(DataSource ds, String queueName, Class<E> type, String me, @Nonnull Condition condition) {
 		this.ds = ds;
 		this.queueName = queueName;
 		this.type = type;
-		this.condition = new MySQLSleepBasedCondition(ds, "queue-" + queueName);
+		this.condition = condition;
 		this.me = me;
 	}
 
-	public boolean add(E value) {
+	/**
+	 * @return The name of the condition signalled when a item is added to the queue
+	 */
+	static String conditionName(String queueName) {
+		return "queue-" + queueName;
+	}
+
+	/**
+	 * Runs the work, retrying deadlocks and lock wait timeouts
+	 */
+	protected <V> V execute(SQLCallable<V> callable) {
 		try {
-			Connection c = ds.getConnection();
-			try {
-				PreparedStatement s = c.prepareStatement(addQuery);
+			return retryPolicy.execute(callable);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public boolean add(final E value) {
+		return execute(new SQLCallable<Boolean>() {
+			public Boolean call() throws SQLException {
+				Connection c = ds.getConnection();
 				try {
-					s.setString(1, queueName);
-					s.setObject(2, me); // Inserted by me
-					s.setObject(3, value);
-					s.execute();
+					return add(c, value);
+				} finally {
+					c.close();
+				}
+			}
+		});
+	}
 
-					// Wake up one
-					condition.signal();
+	/**
+	 * Adds the value as part of the caller's transaction. If the connection is
+	 * not in auto-commit mode, waiters are only signalled once the caller
+	 * calls {@link #commit(Connection)}.
+	 * <p/>
+	 * The transaction must be finished with {@link #commit(Connection)} or
+	 * {@link #rollback(Connection)}, not the Connection's own methods. A plain
+	 * c.commit() does not signal, so waiters sleep until their timeout, and the
+	 * queue keeps a reference to the connection until one of them is called.
+	 *
+	 * @param c
+	 * @param value
+	 * @return true
+	 * @throws SQLException
+	 */
+	public boolean add(@Nonnull Connection c, E value) throws SQLException {
+		PreparedStatement s = c.prepareStatement(addQuery);
+		try {
+			s.setString(1, queueName);
+			s.setObject(2, me); // Inserted by me
+			s.setObject(3, value);
+			s.execute();
 
-					return true;
+			signalAfterCommit(c, 1);
+
+			return true;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	@Override
+	public boolean addAll(final Collection<? extends E> values) {
+		return execute(new SQLCallable<Boolean>() {
+			public Boolean call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					c.setAutoCommit(false);
+					boolean changed = addAll(c, values);
+					commit(c);
+					return changed;
+
+				} catch (SQLException e) {
+					rollback(c);
+					throw e;
 
 				} finally {
-					s.close();
+					c.setAutoCommit(true);
+					c.close();
 				}
-			} finally {
-				c.close();
 			}
+		});
+	}
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+	/**
+	 * Adds all the values in one batch, as part of the caller's transaction.
+	 * If the connection is not in auto-commit mode, waiters are only signalled
+	 * once the caller calls {@link #commit(Connection)}, which must be used
+	 * instead of c.commit(), see {@link #add(Connection, Object)}.
+	 *
+	 * @param c
+	 * @param values
+	 * @return true if any values were added
+	 * @throws SQLException
+	 */
+	public boolean addAll(@Nonnull Connection c, @Nonnull Collection<? extends E> values) throws SQLException {
+		if (values == this)
+			throw new IllegalArgumentException("Adding to self is not supported");
+
+		if (values.isEmpty())
+			return false;
+
+		PreparedStatement s = c.prepareStatement(addQuery);
+		try {
+			for (E value : values) {
+				s.setString(1, queueName);
+				s.setObject(2, me); // Inserted by me
+				s.setObject(3, value);
+				s.addBatch();
+			}
+			s.executeBatch();
+
+			signalAfterCommit(c, values.size());
+
+			return true;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Commits the caller's transaction, then signals waiters about anything
+	 * added on this connection
+	 *
+	 * @param c
+	 * @throws SQLException
+	 */
+	public void commit(@Nonnull Connection c) throws SQLException {
+		c.commit();
+
+		Integer added;
+		synchronized (pendingSignals) {
+			added = pendingSignals.remove(c);
 		}
+
+		if (added != null)
+			signal(added);
+	}
+
+	/**
+	 * Rolls back the caller's transaction, and forgets anything added on this connection
+	 *
+	 * @param c
+	 * @throws SQLException
+	 */
+	public void rollback(@Nonnull Connection c) throws SQLException {
+		synchronized (pendingSignals) {
+			pendingSignals.remove(c);
+		}
+
+		c.rollback();
+	}
+
+	/**
+	 * Signals now if the connection auto-commits, otherwise waits for {@link #commit(Connection)}
+	 */
+	protected void signalAfterCommit(@Nonnull Connection c, int added) throws SQLException {
+		if (c.getAutoCommit()) {
+			signal(added);
+			return;
+		}
+
+		synchronized (pendingSignals) {
+			Integer pending = pendingSignals.get(c);
+			pendingSignals.put(c, pending == null ? added : pending + added);
+		}
+	}
+
+	/**
+	 * Wakes enough waiters to consume the added items
+	 */
+	protected void signal(int added) {
+		if (added <= 0)
+			return;
+
+		if (condition instanceof MySQLSleepBasedCondition) {
+			// Wakes one waiter per item, with one scan
+			((MySQLSleepBasedCondition) condition).signal(added);
+
+		} else if (added == 1) {
+			// Wake up one
+			condition.signal();
+
+		} else {
+			// One scan to wake everyone is cheaper than a scan per item
+			condition.signalAll();
+		}
+	}
+
+	/**
+	 * Adds the value, unless a value with the same key is already in this queue.
+	 * This allows producers to safely retry.
+	 *
+	 * @param key   Unique key for this value
+	 * @param value
+	 * @return true if added, false if it was a duplicate
+	 */
+	public boolean add(@Nonnull final String key, final E value) {
+		final RecentSet<String> recentKeys = this.recentKeys;
+		if (recentKeys != null && recentKeys.contains(key)) {
+			LOG.debug("Ignoring recently added key '{}'", key);
+			return false;
+		}
+
+		return execute(new SQLCallable<Boolean>() {
+			public Boolean call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					PreparedStatement s = c.prepareStatement(addUniqueQuery);
+					try {
+						s.setString(1, queueName);
+						s.setString(2, key);
+						s.setObject(3, me); // Inserted by me
+						s.setObject(4, value);
+
+						// 0 rows are affected if the key already exists
+						boolean added = s.executeUpdate() == 1;
+
+						if (recentKeys != null)
+							recentKeys.add(key);
+
+						if (added) {
+							// Wake up one
+							condition.signal();
+						}
+
+						return added;
+
+					} finally {
+						s.close();
+					}
+				} finally {
+					c.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remember the last size keys passed to {@link #add(String, Object)}, so
+	 * duplicates are rejected without a round trip to the database.
+	 * A size of zero disables the cache.
+	 *
+	 * @param size
+	 */
+	public void setRecentKeyCacheSize(int size) {
+		this.recentKeys = size > 0 ? new RecentSet<String>(size) : null;
 	}
 
 	/**
@@ -158,41 +497,297 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 	 * No blocking
 	 */
 	public E poll() {
+		return execute(new SQLCallable<E>() {
+			public E call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					c.setAutoCommit(false);
+
+					E head = poll(c);
+					c.commit();
+					return head;
+
+				} catch (SQLException e) {
+					c.rollback();
+					throw e;
+
+				} finally {
+					c.setAutoCommit(true);
+					c.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Claims the head as part of the caller's transaction. If the transaction is
+	 * rolled back, the head is returned to the queue. No blocking.
+	 *
+	 * @param c
+	 * @return the head, or null if the queue is empty
+	 * @throws SQLException
+	 */
+	public E poll(@Nonnull Connection c) throws SQLException {
+		int claimSpread = this.claimSpread;
+		if (claimSpread > 1) {
+			long id = claimNearHead(c, claimSpread);
+			if (id == 0)
+				return null;
+
+			if (id > 0)
+				return getValue(c, id);
+
+			// Everything we tried was contended, so fall back to the head
+		}
+
+		CallableStatement s1 = c.prepareCall(pollQuery[0]);
 		try {
-			Connection c = ds.getConnection();
-			try {
-				c.setAutoCommit(false);
+			s1.execute();
+		} finally {
+			s1.close();
+		}
+
+		PreparedStatement s2 = c.prepareStatement(pollQuery[1]);
+		try {
+			s2.setString(1, me); // Acquired by me
+			s2.setString(2, queueName);
+			if (s2.executeUpdate() == 0)
+				return null;
+		} finally {
+			s2.close();
+		}
+
+		CallableStatement s3 = c.prepareCall(pollQuery[2]);
+		try {
+			ResultSet rs = s3.executeQuery();
+			if (rs.next())
+				return rs.getObject(1, type);
+
+			return null;
+
+		} finally {
+			s3.close();
+		}
+	}
 
-				CallableStatement s1 = c.prepareCall(pollQuery[0]);
-				s1.execute();
+	/**
+	 * Claims a random item from the first spread items. Consumers claiming the
+	 * head all lock the same row, and queue behind each other (or deadlock).
+	 * Spreading them over several rows lets them claim in parallel, at the cost
+	 * of items near the head being taken slightly out of order.
+	 *
+	 * @return the id claimed, 0 if the queue is empty, or -1 if all attempts were contended
+	 */
+	protected long claimNearHead(@Nonnull Connection c, int spread) throws SQLException {
+		List<Long> ids = new ArrayList<Long>(spread);
 
-				PreparedStatement s2 = c.prepareStatement(pollQuery[1]);
+		PreparedStatement s1 = c.prepareStatement(candidatesQuery);
+		try {
+			s1.setString(1, queueName);
+			s1.setInt(2, spread);
+
+			ResultSet rs = s1.executeQuery();
+			while (rs.next())
+				ids.add(rs.getLong(1));
+		} finally {
+			s1.close();
+		}
+
+		if (ids.isEmpty())
+			return 0;
+
+		Collections.shuffle(ids, random);
+
+		PreparedStatement s2 = c.prepareStatement(claimByIdQuery);
+		try {
+			for (int i = 0; i < Math.min(ids.size(), MAX_SPREAD_ATTEMPTS); i++) {
 				s2.setString(1, me); // Acquired by me
-				s2.setString(2, queueName);
-				s2.execute();
+				s2.setLong(2, ids.get(i));
+				if (s2.executeUpdate() == 1)
+					return ids.get(i);
+			}
+		} finally {
+			s2.close();
+		}
+
+		return -1;
+	}
 
-				CallableStatement s3 = c.prepareCall(pollQuery[2]);
-				s3.execute();
+	protected E getValue(@Nonnull Connection c, long id) throws SQLException {
+		PreparedStatement s = c.prepareStatement(valueByIdQuery);
+		try {
+			s.setLong(1, id);
+			ResultSet rs = s.executeQuery();
+			if (rs.next())
+				return rs.getObject(1, type);
+
+			return null;
 
-				c.commit();
+		} finally {
+			s.close();
+		}
+	}
 
-				if (s3.execute()) {
-					ResultSet rs = s3.getResultSet();
-					if (rs != null && rs.next()) {
-						return rs.getObject(1, type);
+	/**
+	 * Lets each poll claim a random item from the first spread items, instead of
+	 * the head. This reduces lock contention between many consumers, on MySQL
+	 * versions without SKIP LOCKED. Items are then only roughly in FIFO order.
+	 *
+	 * @param spread Number of items to pick from, or 1 to always take the head
+	 */
+	public void setClaimSpread(int spread) {
+		if (spread < 1)
+			throw new IllegalArgumentException("spread must be at least 1");
+
+		this.claimSpread = spread;
+	}
+
+	/**
+	 * Sets how deadlocks and lock wait timeouts are retried. The policy also
+	 * counts the errors seen, which helps tune the number of consumers.
+	 *
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(@Nonnull RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Removes every item, by marking them acquired in chunks. Unlike
+	 * polling them off, no values are read.
+	 */
+	@Override
+	public void clear() {
+		int cleared;
+		do {
+			cleared = execute(new SQLCallable<Integer>() {
+				public Integer call() throws SQLException {
+					Connection c = ds.getConnection();
+					try {
+						PreparedStatement s = c.prepareStatement(clearQuery);
+						try {
+							s.setString(1, me); // Acquired by me
+							s.setString(2, queueName);
+							s.setInt(3, CLEAR_BATCH_SIZE);
+							return s.executeUpdate();
+						} finally {
+							s.close();
+						}
+					} finally {
+						c.close();
 					}
 				}
+			});
 
-				return null;
+			LOG.debug("Cleared {} items from '{}'", cleared, queueName);
 
-			} finally {
-				c.setAutoCommit(true);
-				c.close();
+		} while (cleared == CLEAR_BATCH_SIZE);
+	}
+
+	/**
+	 * Atomically moves up to n items from the head of this queue to the end of
+	 * another. The values are copied inside the database, and the moved items
+	 * are marked acquired in this queue, all in one transaction.
+	 *
+	 * @param target The queue to move to, whose condition is signalled
+	 * @param n      The maximum number of items to move
+	 * @return The number of items moved
+	 */
+	public int transferTo(@Nonnull final MySQLBasedQueue<E> target, final int n) {
+		final String targetQueueName = target.queueName;
+		if (targetQueueName.equals(queueName))
+			throw new IllegalArgumentException("Transferring to self is not supported");
+
+		if (n <= 0)
+			return 0;
+
+		int moved = execute(new SQLCallable<Integer>() {
+			public Integer call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					c.setAutoCommit(false);
+
+					int count = transferTo(c, targetQueueName, n);
+					c.commit();
+					return count;
+
+				} catch (SQLException e) {
+					c.rollback();
+					throw e;
+
+				} finally {
+					c.setAutoCommit(true);
+					c.close();
+				}
 			}
+		});
 
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+		// Wake the target's consumers once, for the whole batch, through whatever condition it uses
+		if (moved > 0)
+			target.signal(moved);
+
+		return moved;
+	}
+
+	/**
+	 * Moves up to n items as part of the caller's transaction. The target queue is not signalled.
+	 */
+	protected int transferTo(@Nonnull Connection c, @Nonnull String targetQueueName, int n) throws SQLException {
+		List<Long> ids = new ArrayList<Long>();
+
+		PreparedStatement s1 = c.prepareStatement(transferLockQuery);
+		try {
+			s1.setString(1, queueName);
+			s1.setInt(2, n);
+
+			ResultSet rs = s1.executeQuery();
+			while (rs.next())
+				ids.add(rs.getLong(1));
+		} finally {
+			s1.close();
 		}
+
+		if (ids.isEmpty())
+			return 0;
+
+		String placeholders = Placeholders.repeat(ids.size(), "?", ", ");
+
+		PreparedStatement s2 = c.prepareStatement(String.format(getTransferCopyQuery(), placeholders));
+		try {
+			int i = 1;
+			s2.setString(i++, targetQueueName);
+			s2.setString(i++, me); // Inserted by me
+			for (Long id : ids)
+				s2.setLong(i++, id);
+			s2.executeUpdate();
+		} finally {
+			s2.close();
+		}
+
+		PreparedStatement s3 = c.prepareStatement(String.format(transferClaimQuery, placeholders));
+		try {
+			int i = 1;
+			s3.setString(i++, me); // Acquired by me
+			for (Long id : ids)
+				s3.setLong(i++, id);
+			s3.executeUpdate();
+		} finally {
+			s3.close();
+		}
+
+		return ids.size();
+	}
+
+	/**
+	 * @return The INSERT ... SELECT that copies items to the target queue, taking
+	 *         the target queue name, inserted_by, and the ids
+	 */
+	protected String getTransferCopyQuery() {
+		return transferCopyQuery;
 	}
 
 	public int size() {
@@ -218,6 +813,179 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 		}
 	}
 
+	/**
+	 * Items claimed together by {@link #lease(int, int)}. The items go back on the
+	 * queue if they are not acked before the lease expires.
+	 *
+	 * @param <E>
+	 */
+	public static class Lease<E> {
+		final long token;
+		final List<Long> ids;
+		final List<E> values;
+
+		Lease(long token, List<Long> ids, List<E> values) {
+			this.token = token;
+			this.ids = Collections.unmodifiableList(ids);
+			this.values = Collections.unmodifiableList(values);
+		}
+
+		/**
+		 * @return Identifies this lease, for acking
+		 */
+		public long getToken() {
+			return token;
+		}
+
+		/**
+		 * @return The id of each value, in order, for acking a range
+		 */
+		public List<Long> getIds() {
+			return ids;
+		}
+
+		public List<E> getValues() {
+			return values;
+		}
+	}
+
+	/**
+	 * Claims up to maxItems from the head, under a lease. Unless acked within
+	 * leaseSeconds, {@link #requeueExpired()} returns them to the queue, so a
+	 * crashed consumer's items are processed again. No blocking.
+	 *
+	 * @param maxItems
+	 * @param leaseSeconds
+	 * @return The lease, or null if the queue is empty
+	 */
+	public Lease<E> lease(final int maxItems, final int leaseSeconds) {
+		if (maxItems <= 0)
+			throw new IllegalArgumentException("maxItems must be positive");
+
+		if (leaseSeconds <= 0)
+			throw new IllegalArgumentException("leaseSeconds must be positive");
+
+		return execute(new SQLCallable<Lease<E>>() {
+			public Lease<E> call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					long token = random.nextLong() & Long.MAX_VALUE;
+
+					PreparedStatement s1 = c.prepareStatement(leaseQuery);
+					try {
+						s1.setString(1, me); // Acquired by me
+						s1.setLong(2, token);
+						s1.setInt(3, leaseSeconds);
+						s1.setString(4, queueName);
+						s1.setInt(5, maxItems);
+						if (s1.executeUpdate() == 0)
+							return null;
+					} finally {
+						s1.close();
+					}
+
+					PreparedStatement s2 = c.prepareStatement(leasedQuery);
+					try {
+						s2.setLong(1, token);
+
+						List<Long> ids = new ArrayList<Long>();
+						List<E> values = new ArrayList<E>();
+						ResultSet rs = s2.executeQuery();
+						while (rs.next()) {
+							ids.add(rs.getLong(1));
+							values.add(rs.getObject(2, type));
+						}
+						return new Lease<E>(token, ids, values);
+
+					} finally {
+						s2.close();
+					}
+
+				} finally {
+					c.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Acks every item in the lease, in one statement. Items whose lease expired and
+	 * were requeued are not acked, and will be processed again.
+	 *
+	 * @param lease
+	 * @return The number of items acked
+	 */
+	public int ack(@Nonnull Lease<E> lease) {
+		return ack(lease.getToken(), Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Acks the lease's items with ids between fromId and toId (inclusive), so a
+	 * consumer can ack a prefix of a lease as it makes progress.
+	 *
+	 * @param token  The lease's token
+	 * @param fromId
+	 * @param toId
+	 * @return The number of items acked
+	 */
+	public int ack(final long token, final long fromId, final long toId) {
+		return execute(new SQLCallable<Integer>() {
+			public Integer call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					boolean all = fromId == Long.MIN_VALUE && toId == Long.MAX_VALUE;
+					PreparedStatement s = c.prepareStatement(all ? ackQuery : ackRangeQuery);
+					try {
+						s.setLong(1, token);
+						if (!all) {
+							s.setLong(2, fromId);
+							s.setLong(3, toId);
+						}
+						return s.executeUpdate();
+					} finally {
+						s.close();
+					}
+
+				} finally {
+					c.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns items whose lease has expired to the queue. Should be called
+	 * periodically, by any one node.
+	 *
+	 * @return The number of items requeued
+	 */
+	public int requeueExpired() {
+		int requeued = execute(new SQLCallable<Integer>() {
+			public Integer call() throws SQLException {
+				Connection c = ds.getConnection();
+				try {
+					PreparedStatement s = c.prepareStatement(requeueQuery);
+					try {
+						s.setString(1, queueName);
+						return s.executeUpdate();
+					} finally {
+						s.close();
+					}
+
+				} finally {
+					c.close();
+				}
+			}
+		});
+
+		if (requeued > 0) {
+			LOG.info("Requeued {} items with expired leases", requeued);
+			signal(requeued);
+		}
+
+		return requeued;
+	}
+
 	/**
 	 * Blocks until something is in the queue, up to timeout
 	 * null if timeout occurs
@@ -231,15 +999,25 @@ public class MySQLBasedQueue<E> extends AbstractBlockingQueue<E> {
 		boolean stillWaiting = true;
 
 		while (stillWaiting) {
+			// Read the generation first, so an add() between our poll() and our sleep is not missed
+			final MySQLSleepBasedCondition generations = (condition instanceof MySQLSleepBasedCondition
+					&& ((MySQLSleepBasedCondition) condition).isUsingGenerations()) ? (MySQLSleepBasedCondition) condition : null;
+			final long generation = generations != null ? generations.getGeneration() : -1;
+
 			// Check if we can grab one
 			head = poll();
 			if (head != null)
 				break;
 
 			// Block until we are woken, or deadline
+			if (generations != null) {
+				stillWaiting = generations.awaitChange(generation, deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				continue;
+			}
+
 			// Because we don't have a distributed lock around this condition, there is a race condition
 			// whereby we might miss a notify(). However, we can somewhat mitigate the problem, by using
-			// this in a polling fashion
+			// this in a polling fashion (or by enabling generations on the condition)
 			stillWaiting = condition.awaitUntil(deadline);
 		}
 
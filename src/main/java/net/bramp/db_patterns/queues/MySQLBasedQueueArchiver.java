@@ -0,0 +1,184 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves acquired rows out of the queue table, into a archive table. This keeps
+ * the queue table (and its indexes) small, so it stays in the buffer pool.
+ * <p/>
+ * Rows are moved in batches, by id range, so each transaction is short. Run it
+ * periodically, for example from a ScheduledExecutorService. Rows under a lease
+ * are left until they are acked, or requeued.
+ * <p/>
+ * CREATE TABLE queue_archive (
+ *     id          INT UNSIGNED NOT NULL,
+ *     queue_name  VARCHAR(255) NOT NULL,
+ *     inserted    TIMESTAMP NOT NULL,
+ *     inserted_by VARCHAR(255) NOT NULL,
+ *     acquired    TIMESTAMP NULL,
+ *     acquired_by VARCHAR(255) NULL,
+ *     value       BLOB NOT NULL,           -- The actual data
+ *     compressed  BOOLEAN NOT NULL,         -- If true, use UNCOMPRESS(value) to read
+ *     PRIMARY KEY (id)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ *
+ * @author bramp
+ */
+public class MySQLBasedQueueArchiver implements Runnable {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLBasedQueueArchiver.class);
+
+	final static int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * Finds the id range covering the next batch of acquired rows
+	 */
+	final static String rangeQuery =
+			"SELECT MIN(id), MAX(id) FROM (" +
+					"SELECT id FROM queue " +
+					"WHERE acquired IS NOT NULL AND lease_expires IS NULL AND id > ? " +
+					"ORDER BY id ASC " +
+					"LIMIT ?" +
+					") batch";
+
+	final static String archiveQuery =
+			"INSERT INTO queue_archive (id, queue_name, inserted, inserted_by, acquired, acquired_by, value, compressed) " +
+					"SELECT id, queue_name, inserted, inserted_by, acquired, acquired_by, %s, ? FROM queue " +
+					"WHERE acquired IS NOT NULL AND lease_expires IS NULL AND id BETWEEN ? AND ?";
+
+	/**
+	 * Only deletes rows that made it into the archive
+	 */
+	final static String deleteQuery =
+			"DELETE q FROM queue q JOIN queue_archive a ON a.id = q.id " +
+					"WHERE q.id BETWEEN ? AND ?";
+
+	final DataSource ds;
+	final int batchSize;
+	final boolean compress;
+
+	public MySQLBasedQueueArchiver(DataSource ds) {
+		this(ds, DEFAULT_BATCH_SIZE, false);
+	}
+
+	/**
+	 * @param ds
+	 * @param batchSize The maximum number of rows moved per transaction
+	 * @param compress  Store values with MySQL's COMPRESS()
+	 */
+	public MySQLBasedQueueArchiver(DataSource ds, int batchSize, boolean compress) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive");
+
+		this.ds = ds;
+		this.batchSize = batchSize;
+		this.compress = compress;
+	}
+
+	/**
+	 * Archives every acquired row, one batch at a time
+	 *
+	 * @return The number of rows archived
+	 * @throws SQLException
+	 */
+	public long archiveAll() throws SQLException {
+		long total = 0;
+
+		Connection c = ds.getConnection();
+		try {
+			c.setAutoCommit(false);
+
+			long afterId = 0;
+			while (true) {
+				long[] range = findRange(c, afterId);
+				if (range == null)
+					break;
+
+				total += archive(c, range[0], range[1]);
+				c.commit();
+
+				afterId = range[1];
+			}
+
+		} catch (SQLException e) {
+			// Otherwise setAutoCommit(true) would commit a half moved batch
+			c.rollback();
+			throw e;
+
+		} finally {
+			c.setAutoCommit(true);
+			c.close();
+		}
+
+		LOG.debug("Archived {} rows", total);
+		return total;
+	}
+
+	public void run() {
+		try {
+			archiveAll();
+		} catch (SQLException e) {
+			LOG.warn("Failed to archive queue", e);
+		}
+	}
+
+	/**
+	 * @return [min, max] id of the next batch, or null if there is nothing to archive
+	 */
+	protected long[] findRange(Connection c, long afterId) throws SQLException {
+		PreparedStatement s = c.prepareStatement(rangeQuery);
+		try {
+			s.setLong(1, afterId);
+			s.setInt(2, batchSize);
+
+			ResultSet rs = s.executeQuery();
+			if (!rs.next())
+				return null;
+
+			long min = rs.getLong(1);
+			if (rs.wasNull())
+				return null;
+
+			return new long[] {min, rs.getLong(2)};
+
+		} finally {
+			s.close();
+		}
+	}
+
+	protected int archive(Connection c, long minId, long maxId) throws SQLException {
+		copy(c, minId, maxId);
+		return delete(c, minId, maxId);
+	}
+
+	protected int copy(Connection c, long minId, long maxId) throws SQLException {
+		PreparedStatement s = c.prepareStatement(String.format(archiveQuery, compress ? "COMPRESS(value)" : "value"));
+		try {
+			s.setBoolean(1, compress);
+			s.setLong(2, minId);
+			s.setLong(3, maxId);
+			return s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	protected int delete(Connection c, long minId, long maxId) throws SQLException {
+		PreparedStatement s = c.prepareStatement(deleteQuery);
+		try {
+			s.setLong(1, minId);
+			s.setLong(2, maxId);
+			return s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package net.bramp.db_patterns.queues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local write-ahead journal in front of a {@link MySQLBasedQueue}. add() appends
+ * the value to a memory mapped file and returns, and {@link #run()} replays the
+ * journal into the queue in batches. Producers keep going while the database is
+ * slow or failing over.
+ * <p/>
+ * The journal is a series of fixed size segment files. Each starts with the offset
+ * drained so far, followed by records of [length][serialized value]. Once drained,
+ * a segment is deleted. Values must be Serializable.
+ * <p/>
+ * Delivery is at least once. If the process dies after a batch is added, but before
+ * the drained offset is written, the batch is added again on restart. Values are
+ * written to the page cache, so survive the process dying, but not the machine.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MySQLBasedQueueJournal<E> implements Runnable, Closeable {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLBasedQueueJournal.class);
+
+	final static int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024; // in bytes
+	final static int DEFAULT_BATCH_SIZE = 100;
+	final static long DEFAULT_RETRY_INTERVAL = 1000; // in ms
+
+	final static int HEADER_SIZE = 8;  // Drained offset
+	final static int LENGTH_SIZE = 4;  // Before each record
+	final static String SUFFIX = ".journal";
+
+	final MySQLBasedQueue<E> queue;
+	final File dir;
+	final int segmentSize;
+
+	volatile int batchSize = DEFAULT_BATCH_SIZE;
+	volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+	/**
+	 * Segments not yet drained, oldest first. Values are appended to the last.
+	 * Guarded by this.
+	 */
+	final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	boolean closed = false;
+
+	/**
+	 * One memory mapped journal file
+	 */
+	static class Segment {
+		final long number;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+
+		int readPos;  // Drained up to here
+		int writePos; // Next record is written here
+
+		Segment(long number, File file, int size) throws IOException {
+			this.number = number;
+			this.file = file;
+
+			boolean created = !file.exists();
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			if (created)
+				buffer.putLong(0, HEADER_SIZE);
+
+			readPos = (int) buffer.getLong(0);
+
+			// Find the end of the records
+			writePos = readPos;
+			while (writePos + LENGTH_SIZE <= size) {
+				int length = buffer.getInt(writePos);
+				if (length <= 0)
+					break;
+				writePos += LENGTH_SIZE + length;
+			}
+		}
+
+		void delete() throws IOException {
+			raf.close();
+			if (!file.delete())
+				throw new IOException("Failed to delete " + file);
+		}
+	}
+
+	/**
+	 * A batch of records read from one segment
+	 */
+	static class Batch {
+		final Segment segment;
+		final List<byte[]> records;
+		final int end;
+
+		Batch(Segment segment, List<byte[]> records, int end) {
+			this.segment = segment;
+			this.records = records;
+			this.end = end;
+		}
+	}
+
+	public MySQLBasedQueueJournal(@Nonnull MySQLBasedQueue<E> queue, @Nonnull File dir) throws IOException {
+		this(queue, dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the journal, picking up any values not drained before a restart
+	 *
+	 * @param queue       Queue to drain into
+	 * @param dir         Directory for the segment files, used only by this journal
+	 * @param segmentSize Size of each segment file, in bytes. Also the largest value.
+	 * @throws IOException
+	 */
+	public MySQLBasedQueueJournal(@Nonnull MySQLBasedQueue<E> queue, @Nonnull File dir, int segmentSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE + LENGTH_SIZE)
+			throw new IllegalArgumentException("segmentSize is too small");
+
+		this.queue = queue;
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create " + dir);
+
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(names); // Names are zero padded, so sort in order
+
+		for (String name : names) {
+			long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			segments.add(new Segment(number, new File(dir, name), segmentSize));
+		}
+
+		if (segments.isEmpty())
+			segments.add(newSegment(0));
+	}
+
+	protected Segment newSegment(long number) throws IOException {
+		return new Segment(number, new File(dir, String.format("%020d", number) + SUFFIX), segmentSize);
+	}
+
+	/**
+	 * Number of values to add to the queue in each transaction
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive");
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How long to wait before retrying, when adding to the queue fails
+	 *
+	 * @param retryInterval in ms
+	 */
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Appends the value to the journal. It is added to the queue later.
+	 *
+	 * @param value
+	 * @return true
+	 */
+	public boolean add(E value) {
+		byte[] record = serialize(value);
+		if (LENGTH_SIZE + record.length > segmentSize - HEADER_SIZE)
+			throw new IllegalArgumentException("value is larger than a segment");
+
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Journal is closed");
+
+			Segment segment = segments.getLast();
+			if (segment.writePos + LENGTH_SIZE + record.length > segmentSize) {
+				try {
+					segment = newSegment(segment.number + 1);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				segments.add(segment);
+			}
+
+			// Write the value before the length, so a partial record is never read
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(segment.writePos + LENGTH_SIZE);
+			buffer.put(record);
+			segment.buffer.putInt(segment.writePos, record.length);
+			segment.writePos += LENGTH_SIZE + record.length;
+
+			notifyAll();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if every value has been added to the queue
+	 */
+	public synchronized boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.readPos < segment.writePos)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next batch from the oldest segment, deleting segments already drained
+	 *
+	 * @return The batch, or null if there is nothing to drain
+	 */
+	protected synchronized Batch next(int maxRecords) throws IOException {
+		Segment segment = segments.getFirst();
+		while (segment.readPos >= segment.writePos) {
+			if (segments.size() == 1)
+				return null;
+
+			segments.removeFirst().delete();
+			segment = segments.getFirst();
+		}
+
+		List<byte[]> records = new ArrayList<byte[]>();
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int pos = segment.readPos;
+		while (pos < segment.writePos && records.size() < maxRecords) {
+			byte[] record = new byte[segment.buffer.getInt(pos)];
+			buffer.position(pos + LENGTH_SIZE);
+			buffer.get(record);
+			records.add(record);
+
+			pos += LENGTH_SIZE + record.length;
+		}
+
+		return new Batch(segment, records, pos);
+	}
+
+	/**
+	 * Marks the batch as drained
+	 */
+	protected synchronized void ack(@Nonnull Batch batch) {
+		batch.segment.readPos = batch.end;
+		batch.segment.buffer.putLong(0, batch.end);
+	}
+
+	/**
+	 * Adds everything in the journal to the queue, and returns.
+	 *
+	 * @return The number of values added
+	 */
+	public int drain() {
+		int count = 0;
+		try {
+			Batch batch;
+			while ((batch = next(batchSize)) != null) {
+				List<E> values = new ArrayList<E>(batch.records.size());
+				for (byte[] record : batch.records)
+					values.add(deserialize(record));
+
+				queue.addAll(values);
+				ack(batch);
+
+				count += values.size();
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Drains the journal until closed. Run on its own thread.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				drain();
+
+				synchronized (this) {
+					if (closed)
+						break;
+
+					if (isEmpty())
+						wait();
+				}
+
+			} catch (InterruptedException e) {
+				break;
+
+			} catch (RuntimeException e) {
+				LOG.warn("Failed to drain journal, retrying in {}ms", retryInterval, e);
+				try {
+					Thread.sleep(retryInterval);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the drainer, and closes the segment files. Values not yet drained are
+	 * picked up when the journal is next opened.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+
+			for (Segment segment : segments) {
+				segment.buffer.force();
+				segment.raf.close();
+			}
+		}
+	}
+
+	protected byte[] serialize(E value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+
+		} catch (IOException e) {
+			throw new IllegalArgumentException("value must be Serializable", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected E deserialize(byte[] record) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record));
+			try {
+				return (E) in.readObject();
+			} finally {
+				in.close();
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
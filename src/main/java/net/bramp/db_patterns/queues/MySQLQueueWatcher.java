@@ -0,0 +1,315 @@
+package net.bramp.db_patterns.queues;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the queue table for new rows, and wakes local waiters. One background
+ * thread per DataSource replaces a sleeping connection per waiting thread.
+ * <p/>
+ * Each check reads the rows added since the last check, which is a range scan on the
+ * primary key, and wakes the waiters of queues with new unacquired rows. Each row is
+ * only reported once, so rows a waiter can't take (such as a held group) don't wake
+ * it over and over.
+ * <p/>
+ * A row added just before a thread starts waiting, or whose id commits out of order,
+ * is behind the rows already reported. So when a thread starts waiting, having found
+ * its queue empty, the next check also looks at that queue's unacquired rows, using the
+ * (queue_name, acquired, id) key. It wakes the waiters if those rows have changed since
+ * that queue was last looked at. The table is only read while some thread is waiting.
+ * <p/>
+ * Use it in place of the default {@link net.bramp.db_patterns.locks.MySQLSleepBasedCondition}:
+ * <pre>
+ *   MySQLQueueWatcher watcher = MySQLQueueWatcher.getInstance(ds);
+ *   new MySQLBasedQueue&lt;String&gt;(ds, queueName, String.class, me, watcher.getCondition(queueName));
+ * </pre>
+ *
+ * @author bramp
+ */
+public class MySQLQueueWatcher implements Runnable {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLQueueWatcher.class);
+
+	final static String lastIdQuery = "SELECT COALESCE(MAX(id), 0) FROM queue";
+	final static String newRowsQuery = "SELECT DISTINCT queue_name FROM queue WHERE id > ? AND id <= ? AND acquired IS NULL";
+	final static String rescanQuery = "SELECT COUNT(*), COALESCE(MAX(id), 0) FROM queue WHERE queue_name = ? AND acquired IS NULL";
+
+	final static long DEFAULT_INTERVAL = 100; // in ms
+
+	final static Map<DataSource, MySQLQueueWatcher> watchers = new HashMap<DataSource, MySQLQueueWatcher>();
+
+	final DataSource ds;
+
+	final ConcurrentMap<String, QueueCondition> conditions = new ConcurrentHashMap<String, QueueCondition>();
+
+	/**
+	 * Number of threads waiting on any condition
+	 */
+	final AtomicInteger waiting = new AtomicInteger();
+
+	volatile long interval = DEFAULT_INTERVAL;
+
+	/**
+	 * The highest id already reported, or -1 if nothing has been read since threads
+	 * started waiting. Only used by the watcher thread.
+	 */
+	long lastId = -1;
+
+	/**
+	 * Returns the watcher for this DataSource, starting it if needed
+	 *
+	 * @param ds
+	 * @return
+	 */
+	public static synchronized MySQLQueueWatcher getInstance(@Nonnull DataSource ds) {
+		MySQLQueueWatcher watcher = watchers.get(ds);
+		if (watcher == null) {
+			watcher = new MySQLQueueWatcher(ds);
+
+			Thread thread = new Thread(watcher, "MySQLQueueWatcher");
+			thread.setDaemon(true);
+			thread.start();
+
+			watchers.put(ds, watcher);
+		}
+		return watcher;
+	}
+
+	MySQLQueueWatcher(DataSource ds) {
+		this.ds = ds;
+	}
+
+	/**
+	 * @param queueName
+	 * @return A condition signalled when rows are added to this queue, by any process
+	 */
+	public Condition getCondition(@Nonnull String queueName) {
+		QueueCondition condition = conditions.get(queueName);
+		if (condition == null) {
+			QueueCondition newCondition = new QueueCondition(queueName);
+			condition = conditions.putIfAbsent(queueName, newCondition);
+			if (condition == null)
+				condition = newCondition;
+		}
+		return condition;
+	}
+
+	/**
+	 * How often to check for new rows
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public void setInterval(long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+
+		this.interval = unit.toMillis(interval);
+	}
+
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (waiting.get() > 0)
+					check();
+				else
+					lastId = -1; // Rows added now are left to the rescans of future waiters
+
+				Thread.sleep(interval);
+
+			} catch (InterruptedException e) {
+				break;
+
+			} catch (Exception e) {
+				LOG.warn("Failed to check for new rows", e);
+			}
+		}
+	}
+
+	/**
+	 * Signals the waiters of queues with new unacquired rows, then rescans the
+	 * queues that threads have started waiting on
+	 */
+	protected void check() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			long maxId;
+			PreparedStatement s = c.prepareStatement(lastIdQuery);
+			try {
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				maxId = rs.getLong(1);
+			} finally {
+				s.close();
+			}
+
+			// The first check after threads start waiting only finds its place, their rescans cover the rest
+			if (lastId >= 0 && maxId > lastId) {
+				s = c.prepareStatement(newRowsQuery);
+				try {
+					s.setLong(1, lastId);
+					s.setLong(2, maxId);
+
+					ResultSet rs = s.executeQuery();
+					while (rs.next()) {
+						QueueCondition condition = conditions.get(rs.getString(1));
+						if (condition != null && condition.waiters.get() > 0)
+							condition.signalAll();
+					}
+
+				} finally {
+					s.close();
+				}
+			}
+			lastId = maxId;
+
+			for (QueueCondition condition : conditions.values()) {
+				if (condition.waiters.get() > 0 && condition.rescan.getAndSet(false))
+					rescan(c, condition);
+			}
+
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Signals the queue's waiters if its unacquired rows have changed since it was last rescanned
+	 */
+	protected void rescan(@Nonnull Connection c, @Nonnull QueueCondition condition) throws SQLException {
+		PreparedStatement s = c.prepareStatement(rescanQuery);
+		try {
+			s.setString(1, condition.queueName);
+
+			ResultSet rs = s.executeQuery();
+			rs.next();
+			long count = rs.getLong(1);
+			long maxId = rs.getLong(2);
+
+			if (count > 0 && (count != condition.rescanCount || maxId != condition.rescanMaxId))
+				condition.signalAll();
+
+			condition.rescanCount = count;
+			condition.rescanMaxId = maxId;
+
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * A local condition, counting its waiters so the watcher knows when to look
+	 */
+	class QueueCondition implements Condition {
+		final String queueName;
+
+		final Lock lock = new ReentrantLock();
+		final Condition condition = lock.newCondition();
+
+		final AtomicInteger waiters = new AtomicInteger();
+
+		/**
+		 * Set when a thread starts waiting, having found the queue empty
+		 */
+		final AtomicBoolean rescan = new AtomicBoolean();
+
+		// The unacquired rows seen by the last rescan, only used by the watcher thread
+		long rescanCount = -1;
+		long rescanMaxId = -1;
+
+		QueueCondition(String queueName) {
+			this.queueName = queueName;
+		}
+
+		public void await() throws InterruptedException {
+			rescan.set(true);
+			waiting.incrementAndGet();
+			waiters.incrementAndGet();
+			lock.lock();
+			try {
+				condition.await();
+			} finally {
+				lock.unlock();
+				waiters.decrementAndGet();
+				waiting.decrementAndGet();
+			}
+		}
+
+		public void awaitUninterruptibly() {
+			rescan.set(true);
+			waiting.incrementAndGet();
+			waiters.incrementAndGet();
+			lock.lock();
+			try {
+				condition.awaitUninterruptibly();
+			} finally {
+				lock.unlock();
+				waiters.decrementAndGet();
+				waiting.decrementAndGet();
+			}
+		}
+
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			rescan.set(true);
+			waiting.incrementAndGet();
+			waiters.incrementAndGet();
+			lock.lock();
+			try {
+				return condition.awaitNanos(nanosTimeout);
+			} finally {
+				lock.unlock();
+				waiters.decrementAndGet();
+				waiting.decrementAndGet();
+			}
+		}
+
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			return awaitNanos(unit.toNanos(time)) > 0;
+		}
+
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(deadline.getTime() - System.currentTimeMillis());
+			return awaitNanos(nanos) > 0;
+		}
+
+		/**
+		 * Wakes a local waiter. Waiters in other processes are woken by their own watcher.
+		 */
+		public void signal() {
+			lock.lock();
+			try {
+				condition.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void signalAll() {
+			lock.lock();
+			try {
+				condition.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package net.bramp.db_patterns.topics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
+
+/**
+ * A member of a consumer group, reading some of the partitions of a
+ * {@link MySQLBasedPartitionedTopic}.
+ * <p/>
+ * Partitions are shared out between the live members, by sorting the members
+ * by name, and giving partition p to member (p mod members). Members hold a
+ * lease on each of their partitions, renewed by {@link #heartbeat()}. When
+ * members join or leave, each one releases the partitions it should no longer
+ * have, and picks up the free ones it should, on its next heartbeat.
+ * <p/>
+ * The group's offset for each partition is stored as a subscriber named after
+ * the group, so a partition carries on where its last owner committed.
+ * Not thread safe.
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class ConsumerGroupMember<E> {
+
+	final static Logger LOG = LoggerFactory.getLogger(ConsumerGroupMember.class);
+
+	final static String heartbeatQuery =
+			"INSERT INTO topic_member (topic_name, group_name, member, expires) " +
+					"VALUES (?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND)) " +
+					"ON DUPLICATE KEY UPDATE expires = VALUES(expires)";
+
+	final static String expireMembersQuery = "DELETE FROM topic_member WHERE topic_name = ? AND group_name = ? AND expires < NOW()";
+	final static String membersQuery = "SELECT member FROM topic_member WHERE topic_name = ? AND group_name = ? AND expires >= NOW() ORDER BY member ASC";
+	final static String leaveQuery = "DELETE FROM topic_member WHERE topic_name = ? AND group_name = ? AND member = ?";
+
+	final static String createLeaseQuery = "INSERT IGNORE INTO topic_lease (topic_name, group_name, partition_id) VALUES (?, ?, ?)";
+
+	/**
+	 * Takes (or renews) the lease, if it is free, expired or already ours
+	 */
+	final static String acquireLeaseQuery =
+			"UPDATE topic_lease SET member = ?, expires = DATE_ADD(NOW(), INTERVAL ? SECOND) " +
+					"WHERE topic_name = ? AND group_name = ? AND partition_id = ? " +
+					"AND (member IS NULL OR member = ? OR expires < NOW())";
+
+	final static String releaseLeaseQuery =
+			"UPDATE topic_lease SET member = NULL, expires = NULL " +
+					"WHERE topic_name = ? AND group_name = ? AND partition_id = ? AND member = ?";
+
+	final MySQLBasedPartitionedTopic<E> topic;
+	final String groupName;
+	final String memberName;
+	final int leaseSeconds;
+
+	/**
+	 * Partitions we hold the lease for, and our position in each
+	 */
+	final Map<Integer, MySQLBasedTopic<E>.Subscriber> assigned = new TreeMap<Integer, MySQLBasedTopic<E>.Subscriber>();
+
+	Condition condition = null; // Woken when any assigned partition is published to
+	long nextHeartbeat = 0;     // in ms
+	int nextPartition = 0;      // Where the next poll starts, so partitions are read fairly
+
+	ConsumerGroupMember(MySQLBasedPartitionedTopic<E> topic, String groupName, String memberName, int leaseSeconds) {
+		if (leaseSeconds <= 0)
+			throw new IllegalArgumentException("leaseSeconds must be positive");
+
+		this.topic = topic;
+		this.groupName = groupName;
+		this.memberName = memberName;
+		this.leaseSeconds = leaseSeconds;
+	}
+
+	public String getMemberName() {
+		return memberName;
+	}
+
+	/**
+	 * @return The partitions this member currently reads
+	 */
+	public Set<Integer> getPartitions() {
+		return Collections.unmodifiableSet(new HashSet<Integer>(assigned.keySet()));
+	}
+
+	/**
+	 * Renews this member's leases, and rebalances the partitions if members have
+	 * joined or left. Called by poll(), but must be called at least every lease
+	 * period if poll() is not.
+	 */
+	public void heartbeat() {
+		try {
+			Connection c = topic.ds.getConnection();
+			try {
+				List<String> members = renewMembership(c);
+
+				int index = members.indexOf(memberName);
+				Set<Integer> target = new HashSet<Integer>();
+				for (int p = index; index >= 0 && p < topic.getPartitionCount(); p += members.size()) {
+					target.add(p);
+				}
+
+				// Give up the partitions we should no longer have, so their new owner can take them
+				for (Integer p : new ArrayList<Integer>(assigned.keySet())) {
+					if (!target.contains(p)) {
+						assigned.remove(p).commit();
+						releaseLease(c, p);
+						LOG.debug("{} released partition {}", memberName, p);
+					}
+				}
+
+				// Take (or keep) our partitions. Some may still be held by another member,
+				// until it next heartbeats.
+				for (Integer p : target) {
+					if (acquireLease(c, p)) {
+						if (!assigned.containsKey(p)) {
+							assigned.put(p, topic.getPartition(p).subscribe(groupName));
+							LOG.debug("{} acquired partition {}", memberName, p);
+						}
+
+					} else if (assigned.remove(p) != null) {
+						LOG.warn("{} lost the lease on partition {}", memberName, p);
+					}
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+
+		updateCondition();
+
+		// Renew well before the lease runs out
+		nextHeartbeat = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds) / 3;
+	}
+
+	/**
+	 * @return The names of all live members, sorted
+	 */
+	protected List<String> renewMembership(@Nonnull Connection c) throws SQLException {
+		PreparedStatement s1 = c.prepareStatement(heartbeatQuery);
+		try {
+			s1.setString(1, topic.topicName);
+			s1.setString(2, groupName);
+			s1.setString(3, memberName);
+			s1.setInt(4, leaseSeconds);
+			s1.executeUpdate();
+		} finally {
+			s1.close();
+		}
+
+		PreparedStatement s2 = c.prepareStatement(expireMembersQuery);
+		try {
+			s2.setString(1, topic.topicName);
+			s2.setString(2, groupName);
+			s2.executeUpdate();
+		} finally {
+			s2.close();
+		}
+
+		List<String> members = new ArrayList<String>();
+		PreparedStatement s3 = c.prepareStatement(membersQuery);
+		try {
+			s3.setString(1, topic.topicName);
+			s3.setString(2, groupName);
+
+			ResultSet rs = s3.executeQuery();
+			while (rs.next())
+				members.add(rs.getString(1));
+		} finally {
+			s3.close();
+		}
+
+		return members;
+	}
+
+	protected boolean acquireLease(@Nonnull Connection c, int partition) throws SQLException {
+		PreparedStatement s1 = c.prepareStatement(createLeaseQuery);
+		try {
+			s1.setString(1, topic.topicName);
+			s1.setString(2, groupName);
+			s1.setInt(3, partition);
+			s1.executeUpdate();
+		} finally {
+			s1.close();
+		}
+
+		PreparedStatement s2 = c.prepareStatement(acquireLeaseQuery);
+		try {
+			s2.setString(1, memberName);
+			s2.setInt(2, leaseSeconds);
+			s2.setString(3, topic.topicName);
+			s2.setString(4, groupName);
+			s2.setInt(5, partition);
+			s2.setString(6, memberName);
+			return s2.executeUpdate() == 1;
+		} finally {
+			s2.close();
+		}
+	}
+
+	protected void releaseLease(@Nonnull Connection c, int partition) throws SQLException {
+		PreparedStatement s = c.prepareStatement(releaseLeaseQuery);
+		try {
+			s.setString(1, topic.topicName);
+			s.setString(2, groupName);
+			s.setInt(3, partition);
+			s.setString(4, memberName);
+			s.executeUpdate();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Waits on all our partitions, with one sleeping connection
+	 */
+	protected void updateCondition() {
+		if (assigned.isEmpty()) {
+			condition = null;
+			return;
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (Integer p : assigned.keySet())
+			names.add(MySQLBasedTopic.conditionName(topic.getPartition(p).getTopicName()));
+
+		condition = new MySQLSleepBasedCondition(topic.ds, names);
+	}
+
+	/**
+	 * Reads the next values from our partitions. No blocking.
+	 *
+	 * @param maxValues
+	 * @return Up to maxValues values, or a empty list if there are none
+	 */
+	public List<E> poll(int maxValues) {
+		if (System.currentTimeMillis() >= nextHeartbeat)
+			heartbeat();
+
+		List<E> values = new ArrayList<E>();
+		if (assigned.isEmpty())
+			return values;
+
+		List<MySQLBasedTopic<E>.Subscriber> subscribers = new ArrayList<MySQLBasedTopic<E>.Subscriber>(assigned.values());
+		for (int i = 0; i < subscribers.size() && values.size() < maxValues; i++) {
+			MySQLBasedTopic<E>.Subscriber subscriber = subscribers.get((nextPartition + i) % subscribers.size());
+			values.addAll(subscriber.poll(maxValues - values.size()));
+		}
+		nextPartition++;
+
+		return values;
+	}
+
+	/**
+	 * Blocks until there are values in any of our partitions, up to timeout
+	 *
+	 * @return Up to maxValues values, or a empty list if timeout occurs
+	 */
+	public List<E> poll(int maxValues, long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (true) {
+			List<E> values = poll(maxValues);
+			if (!values.isEmpty())
+				return values;
+
+			// Wake up for our next heartbeat, as our partitions may change
+			long wakeMillis = Math.min(deadlineMillis, nextHeartbeat);
+			if (wakeMillis <= System.currentTimeMillis() && wakeMillis == deadlineMillis)
+				return values;
+
+			if (condition == null) {
+				Thread.sleep(Math.max(0, wakeMillis - System.currentTimeMillis()));
+			} else {
+				condition.awaitUntil(new Date(wakeMillis));
+			}
+		}
+	}
+
+	/**
+	 * Stores our position in each partition
+	 */
+	public void commit() {
+		for (MySQLBasedTopic<E>.Subscriber subscriber : assigned.values())
+			subscriber.commit();
+	}
+
+	/**
+	 * Commits, and leaves the group, releasing our partitions to the other members
+	 */
+	public void leave() {
+		commit();
+
+		try {
+			Connection c = topic.ds.getConnection();
+			try {
+				for (Integer p : assigned.keySet())
+					releaseLease(c, p);
+
+				PreparedStatement s = c.prepareStatement(leaveQuery);
+				try {
+					s.setString(1, topic.topicName);
+					s.setString(2, groupName);
+					s.setString(3, memberName);
+					s.executeUpdate();
+				} finally {
+					s.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+
+		assigned.clear();
+		condition = null;
+	}
+}
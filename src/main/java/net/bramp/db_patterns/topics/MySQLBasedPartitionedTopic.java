@@ -0,0 +1,128 @@
+package net.bramp.db_patterns.topics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+/**
+ * A topic split into a fixed number of partitions. Values with the same key
+ * always go to the same partition, so they are read in order.
+ * <p/>
+ * Consumer groups read the topic in parallel. Each partition is read by only
+ * one member of a group at a time, see {@link ConsumerGroupMember}.
+ * <p/>
+ * Each partition is stored as a {@link MySQLBasedTopic}, named "topicName#partition".
+ * Consumer groups also need:
+ * <p/>
+ * CREATE TABLE topic_member (
+ *     topic_name   VARCHAR(255) NOT NULL,
+ *     group_name   VARCHAR(255) NOT NULL,
+ *     member       VARCHAR(255) NOT NULL,
+ *     expires      TIMESTAMP NOT NULL,       -- Member is gone if it doesn't heartbeat by then
+ *     PRIMARY KEY (topic_name, group_name, member)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ * <p/>
+ * CREATE TABLE topic_lease (
+ *     topic_name   VARCHAR(255) NOT NULL,
+ *     group_name   VARCHAR(255) NOT NULL,
+ *     partition_id INT UNSIGNED NOT NULL,
+ *     member       VARCHAR(255) NULL,        -- Member reading this partition
+ *     expires      TIMESTAMP NULL,           -- until
+ *     PRIMARY KEY (topic_name, group_name, partition_id)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MySQLBasedPartitionedTopic<E> {
+
+	final static int DEFAULT_LEASE = 30; // in seconds
+
+	final DataSource ds;
+	final String topicName;
+	final Class<E> type;
+	final String me;
+
+	final List<MySQLBasedTopic<E>> partitions;
+
+	/**
+	 * @param ds
+	 * @param topicName
+	 * @param partitions The number of partitions. This must not change once the topic is used.
+	 * @param type
+	 * @param me         The name of this node, for storing in the database table
+	 */
+	public MySQLBasedPartitionedTopic(DataSource ds, String topicName, int partitions, Class<E> type, String me) {
+		if (partitions <= 0)
+			throw new IllegalArgumentException("partitions must be positive");
+
+		this.ds = ds;
+		this.topicName = topicName;
+		this.type = type;
+		this.me = me;
+
+		List<MySQLBasedTopic<E>> topics = new ArrayList<MySQLBasedTopic<E>>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			topics.add(new MySQLBasedTopic<E>(ds, topicName + "#" + i, type, me));
+		}
+		this.partitions = Collections.unmodifiableList(topics);
+	}
+
+	public String getTopicName() {
+		return topicName;
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	public MySQLBasedTopic<E> getPartition(int partition) {
+		return partitions.get(partition);
+	}
+
+	/**
+	 * @param key
+	 * @return The partition that values with this key are published to
+	 */
+	public int partitionFor(@Nonnull String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % partitions.size();
+	}
+
+	/**
+	 * Publishes the value to the key's partition
+	 *
+	 * @param key   Values with the same key are read in order
+	 * @param value
+	 */
+	public void publish(@Nonnull String key, E value) {
+		partitions.get(partitionFor(key)).publish(value);
+	}
+
+	/**
+	 * Joins a consumer group, with the default lease
+	 *
+	 * @param groupName
+	 * @param memberName Unique (within the group) name for this member
+	 * @return
+	 */
+	public ConsumerGroupMember<E> join(@Nonnull String groupName, @Nonnull String memberName) {
+		return join(groupName, memberName, DEFAULT_LEASE);
+	}
+
+	/**
+	 * Joins a consumer group
+	 *
+	 * @param groupName
+	 * @param memberName   Unique (within the group) name for this member
+	 * @param leaseSeconds How long this member's partitions are kept without a heartbeat
+	 * @return
+	 */
+	public ConsumerGroupMember<E> join(@Nonnull String groupName, @Nonnull String memberName, int leaseSeconds) {
+		ConsumerGroupMember<E> member = new ConsumerGroupMember<E>(this, groupName, memberName, leaseSeconds);
+		member.heartbeat();
+		return member;
+	}
+}
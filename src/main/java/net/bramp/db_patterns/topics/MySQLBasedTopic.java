@@ -0,0 +1,432 @@
+package net.bramp.db_patterns.topics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.annotation.Nonnull;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.bramp.db_patterns.locks.MySQLSleepBasedCondition;
+
+/**
+ * A publish/subscribe topic backed by MySQL
+ * <p/>
+ * Each published value is written once, to a append-only table. Every subscriber
+ * reads the same rows, in order, and keeps its position in a offset row. Reads
+ * are range scans on the primary key, and no rows are updated when read.
+ * <p/>
+ * Values are numbered by a per-topic sequence. A publisher holds the sequence row
+ * lock until it commits, so values become visible in sequence order, and a
+ * subscriber can never skip a value that commits late.
+ * <p/>
+ * CREATE TABLE topic (
+ *     topic_name  VARCHAR(255) NOT NULL,    -- Topic name
+ *     seq         BIGINT UNSIGNED NOT NULL, -- Position in the topic
+ *     inserted    TIMESTAMP NOT NULL,      -- Time the row was inserted
+ *     inserted_by VARCHAR(255) NOT NULL,    -- and by who
+ *     value       BLOB NOT NULL,           -- The actual data
+ *     PRIMARY KEY (topic_name, seq)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ * <p/>
+ * CREATE TABLE topic_sequence (
+ *     topic_name  VARCHAR(255) NOT NULL,
+ *     last_seq    BIGINT UNSIGNED NOT NULL, -- Last seq published
+ *     PRIMARY KEY (topic_name)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ * <p/>
+ * CREATE TABLE topic_offset (
+ *     topic_name  VARCHAR(255) NOT NULL,
+ *     subscriber  VARCHAR(255) NOT NULL,
+ *     last_seq    BIGINT UNSIGNED NOT NULL, -- Last seq the subscriber committed
+ *     updated     TIMESTAMP NOT NULL,
+ *     PRIMARY KEY (topic_name, subscriber)
+ * ) ENGINE=INNODB DEFAULT CHARSET=UTF8;
+ *
+ * @param <E>
+ * @author bramp
+ */
+public class MySQLBasedTopic<E> {
+
+	final static Logger LOG = LoggerFactory.getLogger(MySQLBasedTopic.class);
+
+	/**
+	 * Reserves the next count sequence numbers, and returns the last one through LAST_INSERT_ID()
+	 */
+	final static String nextSeqQuery =
+			"INSERT INTO topic_sequence (topic_name, last_seq) VALUES (?, LAST_INSERT_ID(?)) " +
+					"ON DUPLICATE KEY UPDATE last_seq = LAST_INSERT_ID(last_seq + ?)";
+
+	final static String lastInsertIdQuery = "SELECT LAST_INSERT_ID()";
+	final static String publishQuery = "INSERT INTO topic (topic_name, seq, inserted, inserted_by, value) VALUES (?, ?, NOW(), ?, ?)";
+
+	final static String readQuery = "SELECT seq, value FROM topic WHERE topic_name = ? AND seq > ? ORDER BY seq ASC LIMIT ?";
+
+	final static String subscribeQuery = "INSERT IGNORE INTO topic_offset (topic_name, subscriber, last_seq, updated) VALUES (?, ?, 0, NOW())";
+	final static String offsetQuery = "SELECT last_seq FROM topic_offset WHERE topic_name = ? AND subscriber = ?";
+	final static String commitQuery = "UPDATE topic_offset SET last_seq = GREATEST(last_seq, ?), updated = NOW() WHERE topic_name = ? AND subscriber = ?";
+
+	final static String unsubscribeQuery = "DELETE FROM topic_offset WHERE topic_name = ? AND subscriber = ?";
+
+	/**
+	 * Deletes values every subscriber has committed
+	 */
+	final static String trimQuery =
+			"DELETE FROM topic WHERE topic_name = ? AND seq <= " +
+					"(SELECT MIN(last_seq) FROM topic_offset WHERE topic_name = ?)";
+
+	final String me;
+
+	final DataSource ds;
+	final String topicName;
+	final Class<E> type;
+
+	final Condition condition;
+
+	/**
+	 * Creates a new MySQL backed topic
+	 *
+	 * @param ds
+	 * @param topicName
+	 * @param type
+	 * @param me        The name of this node, for storing in the database table
+	 */
+	public MySQLBasedTopic(DataSource ds, String topicName, Class<E> type, String me) {
+		this.ds = ds;
+		this.topicName = topicName;
+		this.type = type;
+		this.condition = new MySQLSleepBasedCondition(ds, conditionName(topicName));
+		this.me = me;
+	}
+
+	/**
+	 * @return The name of the condition signalled when the topic is published to
+	 */
+	static String conditionName(String topicName) {
+		return "topic-" + topicName;
+	}
+
+	public String getTopicName() {
+		return topicName;
+	}
+
+	/**
+	 * Publishes the value to every subscriber
+	 *
+	 * @param value
+	 */
+	public void publish(E value) {
+		publishAll(Collections.singletonList(value));
+	}
+
+	/**
+	 * Publishes all the values, in order, in one transaction
+	 *
+	 * @param values
+	 */
+	public void publishAll(@Nonnull Collection<? extends E> values) {
+		if (values.isEmpty())
+			return;
+
+		try {
+			Connection c = ds.getConnection();
+			try {
+				c.setAutoCommit(false);
+
+				long seq = reserve(c, values.size()) - values.size();
+
+				PreparedStatement s = c.prepareStatement(publishQuery);
+				try {
+					for (E value : values) {
+						s.setString(1, topicName);
+						s.setLong(2, ++seq);
+						s.setObject(3, me); // Inserted by me
+						s.setObject(4, value);
+						s.addBatch();
+					}
+					s.executeBatch();
+				} finally {
+					s.close();
+				}
+
+				c.commit();
+
+			} catch (SQLException e) {
+				c.rollback();
+				throw e;
+
+			} finally {
+				c.setAutoCommit(true);
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Every subscriber should see it
+		condition.signalAll();
+	}
+
+	/**
+	 * Reserves count sequence numbers. The sequence row stays locked until the
+	 * transaction ends.
+	 *
+	 * @return The last sequence number reserved
+	 */
+	protected long reserve(@Nonnull Connection c, int count) throws SQLException {
+		PreparedStatement s1 = c.prepareStatement(nextSeqQuery);
+		try {
+			s1.setString(1, topicName);
+			s1.setLong(2, count);
+			s1.setLong(3, count);
+			s1.executeUpdate();
+		} finally {
+			s1.close();
+		}
+
+		PreparedStatement s2 = c.prepareStatement(lastInsertIdQuery);
+		try {
+			ResultSet rs = s2.executeQuery();
+			if (rs.next())
+				return rs.getLong(1);
+
+			throw new SQLException("Failed to reserve sequence numbers");
+
+		} finally {
+			s2.close();
+		}
+	}
+
+	/**
+	 * Subscribes to this topic. If the subscriber is new, it starts from the
+	 * beginning of the topic, otherwise from its last committed offset.
+	 *
+	 * @param subscriberName Unique name for this subscriber
+	 * @return
+	 */
+	public Subscriber subscribe(@Nonnull String subscriberName) {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				PreparedStatement s1 = c.prepareStatement(subscribeQuery);
+				try {
+					s1.setString(1, topicName);
+					s1.setString(2, subscriberName);
+					s1.executeUpdate();
+				} finally {
+					s1.close();
+				}
+
+				PreparedStatement s2 = c.prepareStatement(offsetQuery);
+				try {
+					s2.setString(1, topicName);
+					s2.setString(2, subscriberName);
+
+					ResultSet rs = s2.executeQuery();
+					if (!rs.next())
+						throw new RuntimeException("Failed to retreive offset");
+
+					return new Subscriber(subscriberName, rs.getLong(1));
+
+				} finally {
+					s2.close();
+				}
+
+			} finally {
+				c.close();
+			}
+
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deletes the values that every subscriber has committed
+	 *
+	 * @return The number of values deleted
+	 * @throws SQLException
+	 */
+	public int trim() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement(trimQuery);
+			try {
+				s.setString(1, topicName);
+				s.setString(2, topicName);
+				return s.executeUpdate();
+			} finally {
+				s.close();
+			}
+
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Reads a topic from a position. Not thread safe, each thread should
+	 * have its own Subscriber.
+	 */
+	public class Subscriber {
+		final String subscriberName;
+
+		long committed; // Last seq committed to the database
+		long position;  // Last seq returned by poll
+
+		Subscriber(String subscriberName, long committed) {
+			this.subscriberName = subscriberName;
+			this.committed = committed;
+			this.position = committed;
+		}
+
+		public String getSubscriberName() {
+			return subscriberName;
+		}
+
+		/**
+		 * @return The sequence number of the last value returned
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the next values after our position. No blocking.
+		 *
+		 * @param maxValues
+		 * @return Up to maxValues values, or a empty list if there are none
+		 */
+		public List<E> poll(int maxValues) {
+			try {
+				Connection c = ds.getConnection();
+				try {
+					PreparedStatement s = c.prepareStatement(readQuery);
+					try {
+						s.setString(1, topicName);
+						s.setLong(2, position);
+						s.setInt(3, maxValues);
+
+						List<E> values = new ArrayList<E>();
+						ResultSet rs = s.executeQuery();
+						while (rs.next()) {
+							position = rs.getLong(1);
+							values.add(rs.getObject(2, type));
+						}
+						return values;
+
+					} finally {
+						s.close();
+					}
+
+				} finally {
+					c.close();
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Blocks until there are values after our position, up to timeout
+		 *
+		 * @return Up to maxValues values, or a empty list if timeout occurs
+		 */
+		public List<E> poll(int maxValues, long timeout, TimeUnit unit) throws InterruptedException {
+			final long deadlineMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+			final Date deadline = new Date(deadlineMillis);
+
+			List<E> values;
+			boolean stillWaiting = true;
+
+			do {
+				values = poll(maxValues);
+				if (!values.isEmpty())
+					break;
+
+				// Block until something is published, or deadline
+				stillWaiting = condition.awaitUntil(deadline);
+			} while (stillWaiting);
+
+			return values;
+		}
+
+		/**
+		 * Stores our position, so a restarted subscriber carries on from here
+		 */
+		public void commit() {
+			if (position == committed)
+				return;
+
+			try {
+				Connection c = ds.getConnection();
+				try {
+					PreparedStatement s = c.prepareStatement(commitQuery);
+					try {
+						s.setLong(1, position);
+						s.setString(2, topicName);
+						s.setString(3, subscriberName);
+						if (s.executeUpdate() == 0)
+							throw new RuntimeException("Subscriber '" + subscriberName + "' no longer exists");
+
+						committed = position;
+
+					} finally {
+						s.close();
+					}
+
+				} finally {
+					c.close();
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Moves our position back to the last commit, so uncommitted values are read again
+		 */
+		public void rollback() {
+			position = committed;
+		}
+
+		/**
+		 * Removes this subscriber's offset, so it no longer holds back {@link MySQLBasedTopic#trim()}
+		 */
+		public void unsubscribe() {
+			try {
+				Connection c = ds.getConnection();
+				try {
+					PreparedStatement s = c.prepareStatement(unsubscribeQuery);
+					try {
+						s.setString(1, topicName);
+						s.setString(2, subscriberName);
+						s.executeUpdate();
+					} finally {
+						s.close();
+					}
+
+				} finally {
+					c.close();
+				}
+
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
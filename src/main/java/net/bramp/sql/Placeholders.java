@@ -0,0 +1,23 @@
+package net.bramp.sql;
+
+public final class Placeholders {
+	private Placeholders() {}
+
+	/**
+	 * Repeats the placeholder count times, for building IN (?, ?, ...) lists
+	 *
+	 * @param count
+	 * @param placeholder For example "?"
+	 * @param separator   For example ", "
+	 * @return
+	 */
+	public static String repeat(int count, String placeholder, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append(separator);
+			sb.append(placeholder);
+		}
+		return sb.toString();
+	}
+}
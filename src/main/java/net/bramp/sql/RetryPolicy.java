@@ -0,0 +1,195 @@
+package net.bramp.sql;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries work that failed with a transient MySQL error, such as a deadlock or
+ * lock wait timeout. In both cases MySQL has rolled back the failed statement
+ * (or whole transaction) so it is safe to run the work again.
+ * <p/>
+ * Retries back off exponentially, with full jitter, so consumers that deadlocked
+ * with each other don't just collide again. To stop retries making an overload
+ * worse, each retry spends from a budget that is only refilled by calls that
+ * succeed.
+ *
+ * @author bramp
+ */
+public class RetryPolicy {
+
+	final static Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+	public enum ErrorClass {
+		DEADLOCK(1213, "40001"),
+		LOCK_WAIT_TIMEOUT(1205, "41000");
+
+		final int vendorCode;
+		final String sqlState;
+
+		ErrorClass(int vendorCode, String sqlState) {
+			this.vendorCode = vendorCode;
+			this.sqlState = sqlState;
+		}
+	}
+
+	final static int DEFAULT_MAX_ATTEMPTS = 4;
+	final static long DEFAULT_INITIAL_BACKOFF = 10; // in ms
+	final static long DEFAULT_MAX_BACKOFF = 1000; // in ms
+
+	/**
+	 * Each successful call earns a tenth of a retry, up to BUDGET_MAX retries
+	 */
+	final static long BUDGET_PER_RETRY = 10;
+	final static long BUDGET_PER_SUCCESS = 1;
+	final static long BUDGET_MAX = 100 * BUDGET_PER_RETRY;
+
+	final int maxAttempts;
+	final long initialBackoff;
+	final long maxBackoff;
+
+	final AtomicLong budget = new AtomicLong(BUDGET_MAX);
+	final Random random = new Random();
+
+	final Map<ErrorClass, AtomicLong> retries = new EnumMap<ErrorClass, AtomicLong>(ErrorClass.class);
+	final Map<ErrorClass, AtomicLong> failures = new EnumMap<ErrorClass, AtomicLong>(ErrorClass.class);
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * @param maxAttempts    Total number of attempts, 1 disables retries
+	 * @param initialBackoff Maximum wait before the first retry, in ms
+	 * @param maxBackoff     Maximum wait before any retry, in ms
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+
+		for (ErrorClass error : ErrorClass.values()) {
+			retries.put(error, new AtomicLong());
+			failures.put(error, new AtomicLong());
+		}
+	}
+
+	/**
+	 * @param e
+	 * @return the kind of transient error, or null if e should not be retried
+	 */
+	@Nullable
+	public static ErrorClass classify(@Nonnull SQLException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (!(t instanceof SQLException))
+				continue;
+
+			SQLException sqle = (SQLException) t;
+			for (ErrorClass error : ErrorClass.values()) {
+				if (sqle.getErrorCode() == error.vendorCode)
+					return error;
+			}
+
+			// Other drivers may only set the SQLState
+			if (ErrorClass.DEADLOCK.sqlState.equals(sqle.getSQLState()))
+				return ErrorClass.DEADLOCK;
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the callable, retrying on transient errors
+	 *
+	 * @param callable
+	 * @return the result of the callable
+	 * @throws SQLException the last error, if it was not transient, or we gave up
+	 */
+	public <V> V execute(@Nonnull SQLCallable<V> callable) throws SQLException {
+		int attempt = 1;
+		while (true) {
+			try {
+				V result = callable.call();
+				refill();
+				return result;
+
+			} catch (SQLException e) {
+				ErrorClass error = classify(e);
+				if (error == null)
+					throw e;
+
+				if (attempt >= maxAttempts || !spend()) {
+					failures.get(error).incrementAndGet();
+					throw e;
+				}
+
+				retries.get(error).incrementAndGet();
+				LOG.debug("Retrying after {} (attempt {})", error, attempt);
+
+				try {
+					Thread.sleep(backoff(attempt));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+
+				attempt++;
+			}
+		}
+	}
+
+	/**
+	 * @return a random wait, between zero and the exponential backoff for this attempt
+	 */
+	protected long backoff(int attempt) {
+		long max = initialBackoff << Math.min(attempt - 1, 30);
+		if (max <= 0 || max > maxBackoff)
+			max = maxBackoff;
+
+		return (long) (random.nextDouble() * max);
+	}
+
+	protected boolean spend() {
+		while (true) {
+			long current = budget.get();
+			if (current < BUDGET_PER_RETRY)
+				return false;
+			if (budget.compareAndSet(current, current - BUDGET_PER_RETRY))
+				return true;
+		}
+	}
+
+	protected void refill() {
+		while (true) {
+			long current = budget.get();
+			if (current >= BUDGET_MAX)
+				return;
+			if (budget.compareAndSet(current, current + BUDGET_PER_SUCCESS))
+				return;
+		}
+	}
+
+	/**
+	 * @return the number of times a error of this class was retried
+	 */
+	public long getRetries(@Nonnull ErrorClass error) {
+		return retries.get(error).get();
+	}
+
+	/**
+	 * @return the number of times we gave up on a error of this class
+	 */
+	public long getFailures(@Nonnull ErrorClass error) {
+		return failures.get(error).get();
+	}
+}
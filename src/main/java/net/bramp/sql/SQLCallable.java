@@ -0,0 +1,12 @@
+package net.bramp.sql;
+
+import java.sql.SQLException;
+
+/**
+ * Like a Callable, but only throws SQLException
+ *
+ * @author bramp
+ */
+public interface SQLCallable<V> {
+	public V call() throws SQLException;
+}
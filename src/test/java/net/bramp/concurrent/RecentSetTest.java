@@ -0,0 +1,26 @@
+package net.bramp.concurrent;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RecentSetTest {
+
+	@Test
+	public void testEvictsLeastRecent() {
+		RecentSet<String> set = new RecentSet<String>(2);
+
+		assertTrue(set.add("a"));
+		assertTrue(set.add("b"));
+		assertFalse(set.add("a"));
+
+		// "b" is now the least recent, so is evicted
+		assertTrue(set.add("c"));
+
+		assertEquals(2, set.size());
+		assertTrue(set.contains("a"));
+		assertFalse(set.contains("b"));
+		assertTrue(set.contains("c"));
+	}
+
+}
@@ -0,0 +1,85 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLConditionDispatcherTests {
+
+	String lockName;
+
+	ExecutorService executor;
+	DataSource ds;
+
+	@Before
+	public void setup() {
+		// Different lock name for each test (to avoid test clashes)
+		lockName = java.util.UUID.randomUUID().toString();
+
+		ds = DatabaseUtils.createDataSource();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	protected Future<Boolean> await(final Condition condition) {
+		return executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				return condition.await(5, TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	@Test(timeout = 5000)
+	public void testRemoteSignal() throws Exception {
+		// Two dispatchers, as if in two JVMs
+		MySQLConditionDispatcher here = new MySQLConditionDispatcher(ds);
+		MySQLConditionDispatcher there = new MySQLConditionDispatcher(ds);
+
+		Future<Boolean> a = await(here.newCondition(lockName + "-a"));
+		Future<Boolean> b = await(here.newCondition(lockName + "-b"));
+		Thread.sleep(500); // Wait for the sleeper to start
+
+		there.newCondition(lockName + "-a").signal();
+
+		assertTrue("a should be woken", a.get(2, TimeUnit.SECONDS));
+		assertFalse("b should still be waiting", b.isDone());
+
+		there.newCondition(lockName + "-b").signalAll();
+		assertTrue("b should be woken", b.get(2, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 5000)
+	public void testLocalSignal() throws Exception {
+		MySQLConditionDispatcher dispatcher = new MySQLConditionDispatcher(ds);
+		Condition condition = dispatcher.newCondition(lockName);
+
+		Future<Boolean> a = await(condition);
+		Future<Boolean> b = await(condition);
+		Thread.sleep(200);
+
+		condition.signal();
+		Thread.sleep(200);
+		assertTrue("Only one thread should wake", a.isDone() ^ b.isDone());
+
+		condition.signalAll();
+		assertTrue(a.get(1, TimeUnit.SECONDS));
+		assertTrue(b.get(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,106 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import net.bramp.concurrent.Futures;
+import net.bramp.db_patterns.DatabaseUtils;
+import net.bramp.db_patterns.locks.MySQLSleepBasedConditionTests.AwaitCallable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLMultiplexedConditionTests {
+
+	String lockName;
+
+	ExecutorService executor;
+
+	DataSource ds;
+	MySQLMultiplexedCondition condition;
+
+	AtomicBoolean shouldBeASleep;
+	AtomicInteger numberAwake;
+
+	List<Future<Void>> futures;
+
+	@Before
+	public void setup() throws InterruptedException {
+		// Different lock name for each test (to avoid test clashes)
+		lockName = java.util.UUID.randomUUID().toString();
+
+		ds = DatabaseUtils.createDataSource();
+		condition = new MySQLMultiplexedCondition(ds, lockName);
+
+		executor = Executors.newCachedThreadPool();
+
+		shouldBeASleep = new AtomicBoolean(true);
+		numberAwake = new AtomicInteger(0);
+
+		// Create three threads
+		Callable<Void> awaitCallable = new AwaitCallable(shouldBeASleep, numberAwake, condition);
+
+		futures = new ArrayList<Future<Void>>();
+		futures.add( executor.submit(awaitCallable) );
+		futures.add( executor.submit(awaitCallable) );
+		futures.add( executor.submit(awaitCallable) );
+
+		Thread.sleep(100);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		executor.shutdownNow();
+	}
+
+	protected void waitForAllFutures() throws InterruptedException, ExecutionException {
+		try {
+			Futures.getAll(futures, 200, TimeUnit.MILLISECONDS);
+
+		} catch (TimeoutException e) {
+			// Ignore Timeout as that's ok
+		}
+	}
+
+	@Test(timeout = 1000)
+	public void testSignalOne() throws InterruptedException, ExecutionException {
+		shouldBeASleep.set(false);
+		condition.signal();
+
+		waitForAllFutures();
+		assertEquals("Expected only one thread to wake", 1, numberAwake.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testSignalAll() throws InterruptedException, ExecutionException {
+		shouldBeASleep.set(false);
+		condition.signalAll();
+
+		waitForAllFutures();
+		assertEquals("Expected all threads to wake", 3, numberAwake.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testRemoteSignal() throws InterruptedException, ExecutionException {
+		// Signalled the way another process would, by killing the shared sleeper
+		shouldBeASleep.set(false);
+		new MySQLSleepBasedCondition(ds, lockName).signal();
+
+		waitForAllFutures();
+		assertEquals("Expected the shared sleeper to wake every local thread", 3, numberAwake.get());
+	}
+}
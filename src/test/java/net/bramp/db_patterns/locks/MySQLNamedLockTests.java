@@ -0,0 +1,179 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLNamedLockTests {
+
+	String lockName;
+
+	ExecutorService executor;
+
+	DataSource ds;
+	MySQLNamedLock lock;
+
+	@Before
+	public void setup() {
+		// Different lock name for each test (to avoid test clashes)
+		lockName = java.util.UUID.randomUUID().toString();
+
+		ds = DatabaseUtils.createDataSource();
+		lock = new MySQLNamedLock(ds, lockName);
+
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	protected boolean isFreeLock() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT IS_FREE_LOCK(?)");
+			try {
+				s.setString(1, lockName);
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				return rs.getInt(1) == 1;
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test(timeout = 2000)
+	public void testReentrantLock() throws SQLException {
+		assertTrue(isFreeLock());
+
+		lock.lock();
+		lock.lock();
+		assertFalse("Expected the named lock to be held", isFreeLock());
+
+		lock.unlock();
+		assertFalse("Expected the named lock to still be held", isFreeLock());
+
+		lock.unlock();
+		assertTrue("Expected the named lock to be released", isFreeLock());
+	}
+
+	@Test(timeout = 2000)
+	public void testLockedByAnotherConnection() throws Exception {
+		// Another process holds the lock
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT GET_LOCK(?, 0)");
+			s.setString(1, lockName);
+			s.execute();
+			s.close();
+
+			assertFalse(lock.tryLock());
+			assertFalse(lock.tryLock(200, TimeUnit.MILLISECONDS));
+
+		} finally {
+			c.close();
+		}
+
+		assertTrue(lock.tryLock());
+		lock.unlock();
+	}
+
+	@Test(timeout = 2000)
+	public void testLocalThreadsQueue() throws Exception {
+		lock.lock();
+		try {
+			Future<Boolean> other = executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return new MySQLNamedLock(ds, lockName).tryLock();
+				}
+			});
+			assertFalse("Expected another local thread to fail", other.get());
+
+		} finally {
+			lock.unlock();
+		}
+
+		assertNull("Expected the failed attempt to be forgotten", lock.current());
+	}
+
+	@Test(timeout = 2000)
+	public void testCondition() throws Exception {
+		final MySQLNamedLock.LockCondition condition = lock.newCondition();
+
+		Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				MySQLNamedLock other = new MySQLNamedLock(ds, lockName);
+				other.lock();
+				try {
+					return other.newCondition().await(1500, TimeUnit.MILLISECONDS);
+				} finally {
+					other.unlock();
+				}
+			}
+		});
+
+		Thread.sleep(200);
+
+		// The waiter has released the lock
+		lock.lock();
+		try {
+			condition.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		assertTrue("Expected the waiter to be signalled", waiter.get());
+	}
+
+	@Test(timeout = 2000)
+	public void testConditionTimeout() throws Exception {
+		MySQLNamedLock.LockCondition condition = lock.newCondition();
+
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			assertFalse("Expected the unsignalled wait to time out", condition.await(200, TimeUnit.MILLISECONDS));
+			assertTrue("Expected to wait for the timeout", System.currentTimeMillis() - now >= 200);
+
+			assertTrue("Expected awaitNanos to report no time left", condition.awaitNanos(TimeUnit.MILLISECONDS.toNanos(200)) <= 0);
+			assertTrue("Expected the lock to be held again", lock.isHeldByCurrentThread());
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Test(timeout = 2000)
+	public void testLocalLockForgotten() throws Exception {
+		lock.lock();
+		assertTrue(lock.tryLock(0, TimeUnit.MILLISECONDS));
+		lock.unlock();
+		lock.unlock();
+		assertNull("Expected the unused local lock to be forgotten", lock.current());
+	}
+
+	@Test(expected = IllegalMonitorStateException.class)
+	public void testUnlockNotHeld() {
+		lock.unlock();
+	}
+}
@@ -0,0 +1,168 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLReadWriteLockTests {
+
+	String lockName;
+
+	ExecutorService executor;
+
+	DataSource ds;
+	MySQLReadWriteLock lock;
+
+	// A second DataSource, acting as another JVM
+	DataSource remoteDs;
+	MySQLReadWriteLock remote;
+
+	@Before
+	public void setup() {
+		// Different lock name for each test (to avoid test clashes)
+		lockName = java.util.UUID.randomUUID().toString();
+
+		ds = DatabaseUtils.createDataSource();
+		lock = new MySQLReadWriteLock(ds, lockName);
+
+		remoteDs = DatabaseUtils.createDataSource();
+		remote = new MySQLReadWriteLock(remoteDs, lockName);
+
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	protected int countRegistrations() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT COUNT(*) FROM rwlock_reader WHERE lock_name = ?");
+			try {
+				s.setString(1, lockName);
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				return rs.getInt(1);
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test(timeout = 2000)
+	public void testLocalReadersShareRegistration() throws Exception {
+		lock.readLock().lock();
+		try {
+			Future<Integer> other = executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					Lock read = new MySQLReadWriteLock(ds, lockName).readLock();
+					read.lock();
+					try {
+						return countRegistrations();
+					} finally {
+						read.unlock();
+					}
+				}
+			});
+			assertEquals("Expected one registration for both readers", 1, (int) other.get());
+			assertEquals(1, countRegistrations());
+
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		assertEquals("Expected the registration to be removed", 0, countRegistrations());
+	}
+
+	@Test(timeout = 3000)
+	public void testWriterWaitsForRemoteReaders() throws Exception {
+		lock.readLock().lock();
+		try {
+			assertFalse("Expected the writer to wait for the reader", remote.writeLock().tryLock(200, TimeUnit.MILLISECONDS));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		assertTrue(remote.writeLock().tryLock(200, TimeUnit.MILLISECONDS));
+		try {
+			assertFalse("Expected readers to wait for the writer", lock.readLock().tryLock(200, TimeUnit.MILLISECONDS));
+		} finally {
+			remote.writeLock().unlock();
+		}
+	}
+
+	@Test(timeout = 3000)
+	public void testWriterWokenByLastReader() throws Exception {
+		lock.readLock().lock();
+
+		Future<Long> writer = executor.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				remote.writeLock().lock();
+				try {
+					return System.currentTimeMillis();
+				} finally {
+					remote.writeLock().unlock();
+				}
+			}
+		});
+
+		Thread.sleep(200);
+		assertFalse(writer.isDone());
+
+		long released = System.currentTimeMillis();
+		lock.readLock().unlock();
+
+		long locked = writer.get();
+		assertTrue("Expected the writer to be woken, not to poll (took " + (locked - released) + "ms)", locked - released < 500);
+	}
+
+	@Test(timeout = 3000)
+	public void testWriteCondition() throws Exception {
+		final Condition condition = lock.writeLock().newCondition();
+
+		Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				remote.writeLock().lock();
+				try {
+					return remote.writeLock().newCondition().await(2000, TimeUnit.MILLISECONDS);
+				} finally {
+					remote.writeLock().unlock();
+				}
+			}
+		});
+
+		Thread.sleep(200);
+
+		// The waiter has released the write lock
+		lock.writeLock().lock();
+		try {
+			condition.signal();
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		assertTrue("Expected the waiter to be signalled", waiter.get());
+	}
+}
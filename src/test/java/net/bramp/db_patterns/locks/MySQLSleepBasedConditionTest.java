@@ -0,0 +1,17 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MySQLSleepBasedConditionTest {
+
+	@Test
+	public void testParseVersion() {
+		assertEquals(50107, MySQLSleepBasedCondition.parseVersion("5.1.7"));
+		assertEquals(50615, MySQLSleepBasedCondition.parseVersion("5.6.15-log"));
+		assertEquals(80036, MySQLSleepBasedCondition.parseVersion("8.0.36-0ubuntu0.22.04.1"));
+		assertEquals(0, MySQLSleepBasedCondition.parseVersion("unknown"));
+		assertEquals(0, MySQLSleepBasedCondition.parseVersion(null));
+	}
+}
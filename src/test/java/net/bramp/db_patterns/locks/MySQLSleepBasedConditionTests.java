@@ -181,6 +181,78 @@ public class MySQLSleepBasedConditionTests {
 		assertEquals("Expected no threads to wake", 0, numberAwake.get());
 	}
 
+	@Test(timeout = 1000)
+	public void testCoalescedSignals() throws InterruptedException, ExecutionException, TimeoutException {
+		condition.setSignalCoalescing(50, TimeUnit.MILLISECONDS);
+		shouldBeASleep.set(false);
+
+		// Two signals at once, merged into one scan that wakes two threads
+		Future<?> other = executor.submit(new Runnable() {
+			public void run() {
+				condition.signal();
+			}
+		});
+		condition.signal();
+		other.get();
+
+		waitForAllFutures();
+		assertEquals("Expected two threads to wake", 2, numberAwake.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testSnapshotSignalAll() throws InterruptedException, ExecutionException, TimeoutException {
+		MySQLSleepBasedCondition snapshotCondition = new MySQLSleepBasedCondition(ds, lockName);
+		snapshotCondition.setUseProcesslistSnapshot(true);
+		ProcesslistSnapshot.getInstance(ds).invalidate();
+
+		shouldBeASleep.set(false);
+		snapshotCondition.signalAll();
+
+		waitForAllFutures();
+		assertEquals("Expected all threads to wake", 3, numberAwake.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testWaiterTableSignalAll() throws InterruptedException, ExecutionException, TimeoutException {
+		String tableLockName = lockName + "-table";
+		MySQLSleepBasedCondition tableCondition = new MySQLSleepBasedCondition(ds, tableLockName);
+		tableCondition.setUseWaiterTable(true);
+
+		AtomicInteger tableAwake = new AtomicInteger(0);
+		Callable<Void> awaitCallable = new AwaitCallable(shouldBeASleep, tableAwake, tableCondition);
+
+		List<Future<Void>> tableFutures = new ArrayList<Future<Void>>();
+		tableFutures.add( executor.submit(awaitCallable) );
+		tableFutures.add( executor.submit(awaitCallable) );
+		Thread.sleep(100);
+
+		shouldBeASleep.set(false);
+		tableCondition.signalAll();
+
+		Futures.getAll(tableFutures, 500, TimeUnit.MILLISECONDS);
+		assertEquals("Expected both table waiters to wake", 2, tableAwake.get());
+		assertEquals("Expected other waiters to stay asleep", 0, numberAwake.get());
+	}
+
+	@Test(timeout = 1000)
+	public void testGenerationSignalBeforeAwait() throws InterruptedException {
+		MySQLSleepBasedCondition genCondition = new MySQLSleepBasedCondition(ds, lockName + "-gen");
+		genCondition.setUseGenerations(true);
+
+		// A signal between reading the generation and waiting must not be lost
+		long generation = genCondition.getGeneration();
+		genCondition.signal();
+
+		long now = System.currentTimeMillis();
+		assertTrue("Expected the missed signal to be seen", genCondition.awaitChange(generation, 500, TimeUnit.MILLISECONDS));
+		assertTrue("Expected not to sleep", System.currentTimeMillis() - now < 250);
+
+		// Without a signal, it sleeps as normal
+		generation = genCondition.getGeneration();
+		assertFalse("Expected to time out", genCondition.awaitChange(generation, WAIT_FOR_TIMING_TEST, TimeUnit.MILLISECONDS));
+		assertEquals("Expected other waiters to stay asleep", 0, numberAwake.get());
+	}
+
 	/**
 	 * Tests if Thread.cancel(), if the Lock will throw a InterruptedException.
 	 * Due to the implementation, it may take up to MySQLSleepBasedCondition.DEFAULT_WAIT
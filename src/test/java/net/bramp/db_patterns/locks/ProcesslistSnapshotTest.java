@@ -0,0 +1,25 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProcesslistSnapshotTest {
+
+	@Test
+	public void testIsSleepingOn() {
+		List<String> names = Arrays.asList("a", "b");
+
+		assertTrue(ProcesslistSnapshot.isSleepingOn("User sleep", "SELECT SLEEP(60.0), 'a';", names));
+		assertTrue(ProcesslistSnapshot.isSleepingOn("User sleep", "SELECT SLEEP(60.0), 'c,b';", names));
+		assertTrue(ProcesslistSnapshot.isSleepingOn(null, "SELECT SLEEP(60.0), 'a';", names));
+
+		// The connection has moved on to something else
+		assertFalse(ProcesslistSnapshot.isSleepingOn("Sending data", "SELECT * FROM queue", names));
+		assertFalse(ProcesslistSnapshot.isSleepingOn("User sleep", "SELECT SLEEP(60.0), 'c';", names));
+		assertFalse(ProcesslistSnapshot.isSleepingOn(null, null, names));
+	}
+}
@@ -0,0 +1,39 @@
+package net.bramp.db_patterns.locks;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedMySQLLockTest {
+
+	@Test
+	public void testIndexFor() {
+		StripedMySQLLock striped = new StripedMySQLLock(null, "striped", 16);
+
+		for (long id = -1000; id < 1000; id++) {
+			int index = striped.indexFor(id);
+			assertTrue(index >= 0 && index < 16);
+			assertEquals(index, striped.indexFor(Long.valueOf(id)));
+		}
+
+		assertEquals("striped-" + striped.indexFor("key"), striped.get("key").getLockName());
+	}
+
+	@Test
+	public void testBulkGetIsOrderedAndDistinct() {
+		StripedMySQLLock striped = new StripedMySQLLock(null, "striped", 4);
+
+		List<MySQLNamedLock> locks = striped.bulkGet(Arrays.asList(9L, 1L, 5L, 1L, 3L, 7L, 2L, 8L));
+		assertTrue(locks.size() <= 4);
+
+		int last = -1;
+		for (MySQLNamedLock lock : locks) {
+			int index = Integer.parseInt(lock.getLockName().substring("striped-".length()));
+			assertTrue("Expected ascending stripes", index > last);
+			last = index;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiQueueConsumerTests {
+
+	private DataSource ds;
+	private ExecutorService executor;
+
+	private MySQLBasedQueue<String> queueA;
+	private MySQLBasedQueue<String> queueB;
+	private MultiQueueConsumer<String> consumer;
+
+	@Before
+	public void setup() {
+		// Different queue names for each test (to avoid test clashes)
+		String queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queueA = new MySQLBasedQueue<String>(ds, queueName + "-a", String.class, "test");
+		queueB = new MySQLBasedQueue<String>(ds, queueName + "-b", String.class, "test");
+
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		weights.put(queueName + "-a", 1);
+		weights.put(queueName + "-b", 3);
+		consumer = new MultiQueueConsumer<String>(ds, weights, String.class, "test");
+
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		executor.shutdownNow();
+
+		queueA.clear();
+		queueB.clear();
+		queueA.cleanupAll();
+		assertNull("Consumer should find nothing", consumer.poll());
+	}
+
+	@Test
+	public void test() {
+		assertNull("Consumer should find nothing", consumer.poll());
+
+		assertTrue( queueA.add("A1") );
+		assertTrue( queueA.add("A2") );
+		assertTrue( queueB.add("B1") );
+
+		Set<String> values = new HashSet<String>();
+		for (int i = 0; i < 3; i++) {
+			MultiQueueConsumer.Item<String> item = consumer.poll();
+			assertNotNull(item);
+			values.add(item.getValue());
+		}
+
+		assertEquals(3, values.size());
+		assertTrue("Queue A should be empty", queueA.isEmpty());
+		assertTrue("Queue B should be empty", queueB.isEmpty());
+	}
+
+	@Test(timeout=2000)
+	public void blockingTest() throws InterruptedException, ExecutionException, TimeoutException {
+		Future<MultiQueueConsumer.Item<String>> future = executor.submit(new Callable<MultiQueueConsumer.Item<String>>() {
+			public MultiQueueConsumer.Item<String> call() throws Exception {
+				return consumer.take();
+			}
+		});
+
+		Thread.sleep(100);
+		assertFalse("Empty queues should be blocked", future.isDone());
+
+		assertTrue( queueB.add("B1") );
+
+		// It should unblock and consume almost instantly
+		MultiQueueConsumer.Item<String> item = future.get(500, TimeUnit.MILLISECONDS);
+		assertEquals("B1", item.getValue());
+		assertEquals(queueB.queueName, item.getQueueName());
+	}
+}
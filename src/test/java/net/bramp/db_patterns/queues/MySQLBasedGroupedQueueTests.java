@@ -0,0 +1,111 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLBasedGroupedQueueTests {
+
+	private String queueName;
+	private DataSource ds;
+
+	private MySQLBasedGroupedQueue<String> queue;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedGroupedQueue<String>(ds, queueName, String.class, "test");
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll();
+		assertEmpty();
+	}
+
+	protected void assertEmpty() {
+		assertTrue("Queue should start empty", queue.isEmpty());
+		assertEquals("Queue should start empty", 0, queue.size());
+		assertNull("Queue head should be null", queue.peek());
+	}
+
+	@Test
+	public void test() {
+		assertEmpty();
+
+		assertTrue( queue.addToGroup("a", "A1") );
+		assertTrue( queue.addToGroup("a", "A2") );
+		assertTrue( queue.addToGroup("b", "B1") );
+		assertTrue( queue.add("C") );
+
+		assertEquals("Queue should contain four items", 4, queue.size());
+		assertEquals("Queue head should be A1", "A1", queue.poll());
+
+		// A2 is held back until A1 is complete
+		assertEquals("Queue head should be B1", "B1", queue.peek());
+		assertEquals("Queue head should be B1", "B1", queue.poll());
+		assertEquals("Queue head should be C", "C", queue.poll());
+		assertNull("Group a should be blocked", queue.poll());
+
+		queue.complete("a");
+		assertEquals("Queue head should be A2", "A2", queue.poll());
+
+		queue.complete("a");
+		queue.complete("b");
+
+		assertEmpty();
+	}
+
+	@Test(timeout = 10000)
+	public void expiredGroupTest() throws InterruptedException {
+		assertTrue( queue.addToGroup("a", "A1") );
+		assertTrue( queue.addToGroup("a", "A2") );
+
+		queue.setGroupTimeout(1, TimeUnit.SECONDS);
+		assertEquals("Queue head should be A1", "A1", queue.poll());
+		assertNull("Group a should be blocked", queue.poll());
+
+		// The consumer of A1 never completes it
+		Thread.sleep(2500);
+		assertEquals("Expected the expired group to be freed", "A2", queue.poll());
+
+		queue.complete("a");
+		assertEmpty();
+	}
+
+	@Test
+	public void transferKeepsGroupTest() throws SQLException {
+		MySQLBasedGroupedQueue<String> target = new MySQLBasedGroupedQueue<String>(ds, queueName + "-target", String.class, "test");
+		try {
+			assertTrue( queue.addToGroup("a", "A1") );
+			assertTrue( queue.addToGroup("a", "A2") );
+
+			assertEquals("Expected both items to move", 2, queue.transferTo(target, 2));
+			assertEmpty();
+
+			assertEquals("Target head should be A1", "A1", target.poll());
+			assertNull("Group a should be blocked in the target", target.poll());
+
+			target.complete("a");
+			assertEquals("Target head should be A2", "A2", target.poll());
+			target.complete("a");
+
+		} finally {
+			target.clear();
+			target.cleanupAll();
+		}
+	}
+}
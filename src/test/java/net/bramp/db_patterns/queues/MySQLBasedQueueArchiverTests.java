@@ -0,0 +1,103 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLBasedQueueArchiverTests {
+
+	private String queueName;
+	private DataSource ds;
+
+	private MySQLBasedQueue<String> queue;
+	private MySQLBasedQueueArchiver archiver;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		queue = new MySQLBasedQueue<String>(ds, queueName, String.class, "test");
+		archiver = new MySQLBasedQueueArchiver(ds, 1, true);
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll();
+		assertTrue("Queue should be empty", queue.isEmpty());
+	}
+
+	@Test
+	public void test() throws SQLException {
+		assertTrue( queue.add("A") );
+		assertTrue( queue.add("B") );
+		assertTrue( queue.add("C") );
+
+		assertEquals("Queue head should be A", "A", queue.poll());
+		assertEquals("Queue head should be B", "B", queue.poll());
+
+		// Other tests may have left acquired rows behind
+		assertTrue("Expected the acquired rows to be archived", archiver.archiveAll() >= 2);
+		assertEquals("Archiving should not touch pending rows", 1, queue.size());
+		assertEquals("Queue head should be C", "C", queue.poll());
+	}
+
+	protected int countArchived() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT COUNT(*) FROM queue_archive WHERE queue_name = ?");
+			try {
+				s.setString(1, queueName);
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				return rs.getInt(1);
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void failedBatchIsRolledBackTest() throws SQLException {
+		// Archive everything left by other tests, so our rows are the first batch
+		archiver.archiveAll();
+
+		assertTrue( queue.add("A") );
+		assertEquals("Queue head should be A", "A", queue.poll());
+
+		MySQLBasedQueueArchiver failing = new MySQLBasedQueueArchiver(ds, 1, true) {
+			@Override
+			protected int delete(Connection c, long minId, long maxId) throws SQLException {
+				throw new SQLException("Failed between the copy and the delete");
+			}
+		};
+
+		try {
+			failing.archiveAll();
+			fail("Expected the archive to fail");
+		} catch (SQLException e) {
+			// Expected
+		}
+
+		assertEquals("Expected the copy to be rolled back", 0, countArchived());
+
+		// Without the rollback, this would fail with a duplicate key
+		assertEquals(1, archiver.archiveAll());
+		assertEquals(1, countArchived());
+	}
+}
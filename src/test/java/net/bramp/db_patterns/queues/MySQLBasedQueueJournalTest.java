@@ -0,0 +1,129 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLBasedQueueJournalTest {
+
+	/**
+	 * Records what is added, instead of using a database
+	 */
+	static class RecordingQueue extends MySQLBasedQueue<String> {
+		final List<String> added = new ArrayList<String>();
+		boolean fail = false;
+
+		RecordingQueue() {
+			super(null, "test", String.class, "test", new ReentrantLock().newCondition());
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends String> values) {
+			if (fail)
+				throw new RuntimeException("Database is down");
+			return added.addAll(values);
+		}
+	}
+
+	private File dir;
+	private RecordingQueue queue;
+
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		queue = new RecordingQueue();
+	}
+
+	@After
+	public void cleanup() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void drainTest() throws IOException {
+		MySQLBasedQueueJournal<String> journal = new MySQLBasedQueueJournal<String>(queue, dir);
+		assertTrue(journal.isEmpty());
+
+		journal.add("A");
+		journal.add("B");
+		assertFalse(journal.isEmpty());
+
+		assertEquals(2, journal.drain());
+		assertEquals(Arrays.asList("A", "B"), queue.added);
+		assertTrue(journal.isEmpty());
+
+		journal.close();
+	}
+
+	@Test
+	public void failureTest() throws IOException {
+		MySQLBasedQueueJournal<String> journal = new MySQLBasedQueueJournal<String>(queue, dir);
+		journal.add("A");
+
+		queue.fail = true;
+		try {
+			journal.drain();
+			fail("Expected the drain to fail");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+		assertFalse("Failed values should be kept", journal.isEmpty());
+
+		queue.fail = false;
+		assertEquals(1, journal.drain());
+		assertEquals(Arrays.asList("A"), queue.added);
+
+		journal.close();
+	}
+
+	@Test
+	public void restartTest() throws IOException {
+		MySQLBasedQueueJournal<String> journal = new MySQLBasedQueueJournal<String>(queue, dir);
+		journal.add("A");
+		journal.drain();
+		journal.add("B");
+		journal.close();
+
+		// Only the value not drained is replayed
+		journal = new MySQLBasedQueueJournal<String>(queue, dir);
+		journal.add("C");
+		assertEquals(2, journal.drain());
+		assertEquals(Arrays.asList("A", "B", "C"), queue.added);
+
+		journal.close();
+	}
+
+	@Test
+	public void segmentTest() throws IOException {
+		MySQLBasedQueueJournal<String> journal = new MySQLBasedQueueJournal<String>(queue, dir, 256);
+		journal.setBatchSize(3);
+
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			journal.add("value " + i);
+			expected.add("value " + i);
+		}
+		assertTrue("Values should span many segments", dir.listFiles().length > 1);
+
+		assertEquals(50, journal.drain());
+		assertEquals(expected, queue.added);
+
+		journal.drain();
+		assertEquals("Drained segments should be deleted", 1, dir.listFiles().length);
+
+		journal.close();
+	}
+}
@@ -2,13 +2,21 @@ package net.bramp.db_patterns.queues;
 
 import static org.junit.Assert.*;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
 import net.bramp.db_patterns.DatabaseUtils;
 
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -68,6 +76,175 @@ public class MySQLBasedQueueTests {
 		assertEmpty();
 	}
 
+	@Test
+	public void addWithKeyTest() {
+		assertEmpty();
+
+		assertTrue( queue.add("key-a", "A") );
+		assertFalse("Duplicate key should be ignored", queue.add("key-a", "A") );
+		assertTrue( queue.add("key-b", "B") );
+
+		assertEquals("Queue should contain two items", 2, queue.size());
+
+		// The cache should catch duplicates before the database does
+		queue.setRecentKeyCacheSize(10);
+		assertTrue( queue.add("key-c", "C") );
+		assertFalse("Duplicate key should be ignored", queue.add("key-c", "C") );
+
+		assertEquals("Queue head should be A", "A", queue.poll());
+		assertEquals("Queue head should be B", "B", queue.poll());
+		assertEquals("Queue head should be C", "C", queue.poll());
+
+		assertEmpty();
+	}
+
+	@Test
+	public void addWithKeyFoundRowsTest() {
+		// Connector/J's default reports rows found, not rows changed
+		MysqlDataSource foundRows = (MysqlDataSource) DatabaseUtils.createDataSource();
+		foundRows.setUseAffectedRows(false);
+
+		MySQLBasedQueue<String> other = new MySQLBasedQueue<String>(foundRows, queueName, String.class, "test");
+
+		assertTrue( other.add("key-a", "A") );
+		assertFalse("Duplicate key should be ignored", other.add("key-a", "A") );
+		assertEquals("Queue should contain one item", 1, queue.size());
+
+		assertEquals("Queue head should be A", "A", queue.poll());
+		assertEmpty();
+	}
+
+	@Test
+	public void transactionTest() throws SQLException {
+		assertEmpty();
+
+		Connection c = ds.getConnection();
+		try {
+			c.setAutoCommit(false);
+
+			// Rolled back adds never appear
+			assertTrue( queue.add(c, "A") );
+			queue.rollback(c);
+			assertEmpty();
+
+			assertTrue( queue.addAll(c, Arrays.asList("B", "C")) );
+			queue.commit(c);
+			assertEquals("Queue should contain two items", 2, queue.size());
+
+			// Rolled back polls are returned to the queue
+			assertEquals("Queue head should be B", "B", queue.poll(c));
+			queue.rollback(c);
+			assertEquals("Queue should contain two items", 2, queue.size());
+
+			assertEquals("Queue head should be B", "B", queue.poll(c));
+			assertEquals("Queue head should be C", "C", queue.poll(c));
+			queue.commit(c);
+
+		} finally {
+			c.setAutoCommit(true);
+			c.close();
+		}
+
+		assertEmpty();
+	}
+
+	@Test
+	public void transferTest() throws SQLException {
+		assertEmpty();
+
+		MySQLBasedQueue<String> target = new MySQLBasedQueue<String>(ds, queueName + "-target", String.class, "test");
+
+		assertTrue( queue.add("A") );
+		assertTrue( queue.add("B") );
+		assertTrue( queue.add("C") );
+
+		assertEquals("Expected two items moved", 2, queue.transferTo(target, 2));
+		assertEquals("Queue should contain one item", 1, queue.size());
+		assertEquals("Target should contain two items", 2, target.size());
+
+		assertEquals("Queue head should be C", "C", queue.poll());
+		assertEquals("Target head should be A", "A", target.poll());
+		assertEquals("Target head should be B", "B", target.poll());
+
+		assertEquals("Nothing left to move", 0, queue.transferTo(target, 2));
+		assertTrue("Target should be empty", target.isEmpty());
+
+		assertEmpty();
+	}
+
+	@Test
+	public void clearTest() throws SQLException {
+		assertEmpty();
+
+		// More than one chunk
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < MySQLBasedQueue.CLEAR_BATCH_SIZE * 2 + 10; i++)
+			values.add("V" + i);
+		assertTrue( queue.addAll(values) );
+
+		// Claimed by another consumer before the clear
+		MySQLBasedQueue<String> consumer = new MySQLBasedQueue<String>(ds, queueName, String.class, "consumer");
+		assertEquals("Queue head should be V0", "V0", consumer.poll());
+
+		MySQLBasedQueue<String> other = new MySQLBasedQueue<String>(ds, queueName + "-other", String.class, "test");
+		try {
+			assertTrue( other.add("X") );
+
+			queue.clear();
+			assertEmpty();
+
+			assertEquals("Claimed item should be left alone", 1, countAcquiredBy("consumer"));
+			assertEquals("Other queues should be left alone", 1, other.size());
+
+		} finally {
+			other.clear();
+			other.cleanupAll();
+		}
+	}
+
+	protected int countAcquiredBy(String acquiredBy) throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			PreparedStatement s = c.prepareStatement("SELECT COUNT(*) FROM queue WHERE queue_name = ? AND acquired_by = ?");
+			try {
+				s.setString(1, queueName);
+				s.setString(2, acquiredBy);
+				ResultSet rs = s.executeQuery();
+				rs.next();
+				return rs.getInt(1);
+			} finally {
+				s.close();
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void leaseTest() throws InterruptedException {
+		assertEmpty();
+
+		queue.addAll(Arrays.asList("A", "B", "C"));
+
+		MySQLBasedQueue.Lease<String> lease = queue.lease(2, 1);
+		assertEquals(Arrays.asList("A", "B"), lease.getValues());
+		assertEquals("Only C should be left", 1, queue.size());
+
+		// Ack A, then let the lease on B expire
+		long a = lease.getIds().get(0);
+		assertEquals(1, queue.ack(lease.getToken(), a, a));
+
+		Thread.sleep(2000);
+		assertEquals(1, queue.requeueExpired());
+		assertEquals("Acking a expired lease should do nothing", 0, queue.ack(lease));
+
+		MySQLBasedQueue.Lease<String> lease2 = queue.lease(10, 60);
+		assertEquals(Arrays.asList("B", "C"), lease2.getValues());
+		assertEquals(2, queue.ack(lease2));
+
+		assertNull(queue.lease(10, 60));
+	}
+
 	/* TODO We should change this to measure if take actually blocked forever
 	@Test(timeout=5000)
 	public void takeBlockingTest() throws InterruptedException {
@@ -0,0 +1,85 @@
+package net.bramp.db_patterns.queues;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLQueueWatcherTests {
+
+	private String queueName;
+	private DataSource ds;
+
+	private MySQLBasedQueue<String> queue;
+
+	@Before
+	public void setup() {
+		// Different queue name for each test (to avoid test clashes)
+		queueName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		MySQLQueueWatcher watcher = MySQLQueueWatcher.getInstance(ds);
+		queue = new MySQLBasedQueue<String>(ds, queueName, String.class, "test", watcher.getCondition(queueName));
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		queue.clear();
+		queue.cleanupAll();
+	}
+
+	@Test(timeout=5000)
+	public void remoteAddTest() throws InterruptedException {
+		// Uses the default condition, so only the watcher can wake us
+		final MySQLBasedQueue<String> other = new MySQLBasedQueue<String>(ds, queueName, String.class, "other");
+
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {}
+				other.add("A");
+			}
+		}.start();
+
+		long now = System.currentTimeMillis();
+		assertEquals("A", queue.poll(10, TimeUnit.SECONDS));
+		assertTrue("We should be woken soon after the add", System.currentTimeMillis() - now < 2000);
+	}
+
+	@Test(timeout=5000)
+	public void addBeforeWaitTest() throws InterruptedException {
+		// Added after our (pretend) empty poll, but before we wait
+		MySQLBasedQueue<String> other = new MySQLBasedQueue<String>(ds, queueName, String.class, "other");
+		other.add("A");
+
+		Condition condition = MySQLQueueWatcher.getInstance(ds).getCondition(queueName);
+
+		long now = System.currentTimeMillis();
+		assertTrue("We should be woken by the next check", condition.await(3, TimeUnit.SECONDS));
+		assertTrue("We should be woken soon after waiting", System.currentTimeMillis() - now < 1000);
+		assertEquals("A", queue.poll());
+	}
+
+	@Test(timeout=5000)
+	public void reportedOnceTest() throws InterruptedException {
+		MySQLBasedQueue<String> other = new MySQLBasedQueue<String>(ds, queueName, String.class, "other");
+		other.add("A");
+
+		Condition condition = MySQLQueueWatcher.getInstance(ds).getCondition(queueName);
+		assertTrue("We should be woken by the next check", condition.await(3, TimeUnit.SECONDS));
+
+		// We didn't take the row, but it has already been reported
+		assertFalse("The same row should not wake us again", condition.await(500, TimeUnit.MILLISECONDS));
+		assertEquals("A", queue.poll());
+	}
+}
@@ -123,6 +123,20 @@ public class StressMySQLBasedQueueTests {
 	 */
 	@Test(timeout=120000)
 	public void stress() throws InterruptedException {
+		stress(queue);
+	}
+
+	/**
+	 * Multiple consumers and producers, with consumers claiming near the head
+	 * @throws InterruptedException
+	 */
+	@Test(timeout=120000)
+	public void stressClaimSpread() throws InterruptedException {
+		queue.setClaimSpread(8);
+		stress(queue);
+	}
+
+	protected void stress(MySQLBasedQueue<Integer> queue) throws InterruptedException {
 		assertEmpty();
 
 		final int producers = 8;
@@ -0,0 +1,102 @@
+package net.bramp.db_patterns.topics;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLBasedPartitionedTopicTests {
+
+	private String topicName;
+	private DataSource ds;
+
+	private MySQLBasedPartitionedTopic<String> topic;
+
+	@Before
+	public void setup() {
+		// Different topic name for each test (to avoid test clashes)
+		topicName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		topic = new MySQLBasedPartitionedTopic<String>(ds, topicName, 4, String.class, "test");
+	}
+
+	@Test
+	public void partitionForTest() {
+		assertEquals(topic.partitionFor("key"), topic.partitionFor("key"));
+		for (String key : new String[] {"", "a", "b", "key"}) {
+			int p = topic.partitionFor(key);
+			assertTrue(p >= 0 && p < topic.getPartitionCount());
+		}
+	}
+
+	@Test
+	public void rebalanceTest() {
+		ConsumerGroupMember<String> a = topic.join("group", "a");
+		assertEquals("A lone member reads every partition", 4, a.getPartitions().size());
+
+		ConsumerGroupMember<String> b = topic.join("group", "b");
+		assertTrue("b can't take partitions until a releases them", b.getPartitions().isEmpty());
+
+		a.heartbeat(); // a gives up b's share
+		b.heartbeat();
+
+		Set<Integer> all = new HashSet<Integer>(a.getPartitions());
+		all.addAll(b.getPartitions());
+		assertEquals(2, a.getPartitions().size());
+		assertEquals(2, b.getPartitions().size());
+		assertEquals(4, all.size());
+
+		b.leave();
+		a.heartbeat();
+		assertEquals(4, a.getPartitions().size());
+		a.leave();
+	}
+
+	@Test
+	public void orderTest() {
+		ConsumerGroupMember<String> a = topic.join("group", "a");
+
+		for (int i = 0; i < 10; i++) {
+			topic.publish("x", "x" + i);
+			topic.publish("y", "y" + i);
+		}
+
+		List<String> values = new ArrayList<String>();
+		List<String> read;
+		while (!(read = a.poll(3)).isEmpty())
+			values.addAll(read);
+
+		assertEquals(20, values.size());
+
+		// Values with the same key are in order
+		List<String> xs = new ArrayList<String>();
+		for (String value : values)
+			if (value.startsWith("x"))
+				xs.add(value);
+
+		List<String> sorted = new ArrayList<String>(xs);
+		Collections.sort(sorted, new java.util.Comparator<String>() {
+			public int compare(String o1, String o2) {
+				return Integer.valueOf(o1.substring(1)).compareTo(Integer.valueOf(o2.substring(1)));
+			}
+		});
+		assertEquals(sorted, xs);
+
+		// The group carries on from its committed position
+		a.leave();
+		ConsumerGroupMember<String> c = topic.join("group", "c");
+		assertTrue(c.poll(10).isEmpty());
+		c.leave();
+	}
+}
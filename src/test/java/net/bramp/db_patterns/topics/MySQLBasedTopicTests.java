@@ -0,0 +1,73 @@
+package net.bramp.db_patterns.topics;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import net.bramp.db_patterns.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MySQLBasedTopicTests {
+
+	private String topicName;
+	private DataSource ds;
+
+	private MySQLBasedTopic<String> topic;
+
+	@Before
+	public void setup() {
+		// Different topic name for each test (to avoid test clashes)
+		topicName = java.util.UUID.randomUUID().toString();
+		ds = DatabaseUtils.createDataSource();
+
+		topic = new MySQLBasedTopic<String>(ds, topicName, String.class, "test");
+	}
+
+	@After
+	public void cleanupDatabase() throws SQLException {
+		topic.subscribe("a").unsubscribe();
+		topic.subscribe("b").unsubscribe();
+	}
+
+	@Test
+	public void test() throws SQLException {
+		MySQLBasedTopic<String>.Subscriber a = topic.subscribe("a");
+		MySQLBasedTopic<String>.Subscriber b = topic.subscribe("b");
+
+		assertTrue("Topic should start empty", a.poll(10).isEmpty());
+
+		topic.publish("A");
+		topic.publishAll(Arrays.asList("B", "C"));
+
+		// Every subscriber sees every value
+		assertEquals(Arrays.asList("A", "B"), a.poll(2));
+		assertEquals(Arrays.asList("C"), a.poll(2));
+		assertEquals(Arrays.asList("A", "B", "C"), b.poll(10));
+
+		// Only a commits, so b starts again from the beginning
+		a.commit();
+		assertTrue("a should have read everything", topic.subscribe("a").poll(10).isEmpty());
+		assertEquals(Arrays.asList("A", "B", "C"), topic.subscribe("b").poll(10));
+
+		// Nothing can be trimmed until b commits
+		assertEquals(0, topic.trim());
+		b.commit();
+		assertEquals(3, topic.trim());
+	}
+
+	@Test(timeout=1000)
+	public void pollBlockingTest() throws InterruptedException {
+		MySQLBasedTopic<String>.Subscriber a = topic.subscribe("a");
+
+		long now = System.currentTimeMillis();
+		assertTrue("poll should time out", a.poll(10, 300, TimeUnit.MILLISECONDS).isEmpty());
+		assertTrue("We waited less than 300ms", System.currentTimeMillis() - now >= 300);
+	}
+}
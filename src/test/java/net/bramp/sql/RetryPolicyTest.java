@@ -0,0 +1,84 @@
+package net.bramp.sql;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+
+import net.bramp.sql.RetryPolicy.ErrorClass;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	/**
+	 * Fails with the given error, the given number of times
+	 */
+	static class FailingCallable implements SQLCallable<String> {
+		final SQLException error;
+		int failures;
+		int calls = 0;
+
+		FailingCallable(SQLException error, int failures) {
+			this.error = error;
+			this.failures = failures;
+		}
+
+		public String call() throws SQLException {
+			calls++;
+			if (failures-- > 0)
+				throw error;
+			return "done";
+		}
+	}
+
+	@Test
+	public void testClassify() {
+		assertEquals(ErrorClass.DEADLOCK, RetryPolicy.classify(new SQLException("Deadlock", "40001", 1213)));
+		assertEquals(ErrorClass.LOCK_WAIT_TIMEOUT, RetryPolicy.classify(new SQLException("Lock wait", "41000", 1205)));
+		assertEquals(ErrorClass.DEADLOCK, RetryPolicy.classify(new SQLException("Rollback", "40001")));
+		assertNull(RetryPolicy.classify(new SQLException("Syntax", "42000", 1064)));
+	}
+
+	@Test
+	public void testRetries() throws SQLException {
+		RetryPolicy policy = new RetryPolicy(3, 1, 1);
+		FailingCallable callable = new FailingCallable(new SQLException("Deadlock", "40001", 1213), 2);
+
+		assertEquals("done", policy.execute(callable));
+		assertEquals(3, callable.calls);
+		assertEquals(2, policy.getRetries(ErrorClass.DEADLOCK));
+		assertEquals(0, policy.getFailures(ErrorClass.DEADLOCK));
+	}
+
+	@Test
+	public void testGivesUp() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 1);
+		FailingCallable callable = new FailingCallable(new SQLException("Lock wait", "41000", 1205), 5);
+
+		try {
+			policy.execute(callable);
+			fail("Expected SQLException");
+		} catch (SQLException e) {
+			// Expected
+		}
+
+		assertEquals(3, callable.calls);
+		assertEquals(2, policy.getRetries(ErrorClass.LOCK_WAIT_TIMEOUT));
+		assertEquals(1, policy.getFailures(ErrorClass.LOCK_WAIT_TIMEOUT));
+	}
+
+	@Test
+	public void testNotTransient() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 1);
+		FailingCallable callable = new FailingCallable(new SQLException("Syntax", "42000", 1064), 1);
+
+		try {
+			policy.execute(callable);
+			fail("Expected SQLException");
+		} catch (SQLException e) {
+			// Expected
+		}
+
+		assertEquals(1, callable.calls);
+	}
+}